@@ -23,7 +23,7 @@ from wlauto.core.resource import NO_ONE
 from wlauto.common.resources import ExtensionAsset, Executable
 from wlauto.exceptions import WorkloadError, ResourceError, ConfigError
 from wlauto.utils.android import ApkInfo, ANDROID_NORMAL_PERMISSIONS
-from wlauto.utils.types import boolean
+from wlauto.utils.types import boolean, list_of_strs
 import wlauto.common.android.resources
 
 
@@ -64,6 +64,100 @@ class UiAutomatorWorkload(Workload):
     # benchmarks.
     run_timeout = 4 * 60  # seconds
 
+    # Reports written by the UI Automation library into the device working
+    # directory, pulled as part of the result if present
+    uiauto_reports = ['overhead.log', 'selector_profile.log', 'timeout_model.log',
+                      'navigation_replay.log', 'watchdog.log', 'contention.log']
+
+    # History kept by the UI Automation library across runs, keyed by the
+    # parameter that enables it. The device working directory does not
+    # outlive the run, so the stores are kept in the workload's dependencies
+    # directory on the host and pushed back before each run.
+    uiauto_stores = {'adaptive_timeouts_enabled': 'timeout_model.dat',
+                     'navigation_replay_enabled': 'navigation_replay.dat'}
+
+    parameters = [
+        Parameter('selector_profile_enabled', kind=boolean, default=False,
+                  description='''
+                  Time every view lookup made through the UI Automation library
+                  and report the slowest selectors, with the size of the UI
+                  tree they were matched against and where they are looked up.
+                  '''),
+        Parameter('adaptive_timeouts_enabled', kind=boolean, default=False,
+                  description='''
+                  Learn how long each view lookup takes across runs (the history
+                  is kept in the workload's dependencies directory on the host)
+                  and, once it has been seen 20 times, cut its timeout down to a
+                  multiple of the 99th percentile, but no less than 5 seconds.
+                  Lookups slower than they have been before are reported.
+                  '''),
+        Parameter('navigation_replay_enabled', kind=boolean, default=False,
+                  description='''
+                  Record the view each navigation click lands on and, on later
+                  runs, tap its coordinates directly once a view with the same
+                  class, text and description is shown in the same place,
+                  instead of looking the view up again.
+                  Clicks made during measured actions are never replayed.
+                  '''),
+        Parameter('watchdog_enabled', kind=boolean, default=False,
+                  description='''
+                  Watch the app under test for crashes (its process dying or
+                  restarting, or the system crash dialog), ANR dialogs and hangs
+                  (input sent to the app left unanswered while waiting for a view)
+                  and fail the iteration within a second of one, with the failure
+                  classified and an excerpt of logcat attached, instead of waiting
+                  for timeouts. The app is not polled during measured actions.
+                  '''),
+        Parameter('watchdog_stall_secs', kind=int, default=30,
+                  description='''
+                  How long an input event sent to the app may go unanswered while
+                  a view is being waited for before the watchdog reports it as
+                  hung.
+                  '''),
+        Parameter('contention_cpu_threads', kind=int, default=0,
+                  description='''
+                  Number of threads loading the CPU in the background while
+                  measured actions run.
+                  '''),
+        Parameter('contention_cpu_duty', kind=int, default=50,
+                  constraint=lambda x: 0 < x <= 100,
+                  description='''
+                  Percentage of the time each background CPU load thread is busy.
+                  '''),
+        Parameter('contention_memory_mb', kind=int, default=0,
+                  description='''
+                  Amount of memory, in MB, to allocate and keep touched in the
+                  background while measured actions run. Limited by the heap size
+                  of the UI Automation process; the amount achieved is reported.
+                  '''),
+        Parameter('contention_io', default='none', allowed_values=['none', 'sequential', 'random'],
+                  description='''
+                  Pattern of background writes to storage while measured actions
+                  run.
+                  '''),
+        Parameter('contention_io_rate', kind=int, default=1024,
+                  description='''
+                  Rate of background writes to storage, in KB/s.
+                  '''),
+        Parameter('frame_source', kind=str, default=None,
+                  allowed_values=['auto', 'surfFlinger', 'gfxInfo', 'timeStats'],
+                  description='''
+                  Frame capture backend used for the dumpsys captures of measured
+                  actions. ``auto`` probes the backends on the device and uses the
+                  cheapest one that reports frames for the app; a backend the
+                  platform does not support is ignored. If not set, both
+                  SurfaceFlinger and gfxinfo captures are taken.
+                  '''),
+        Parameter('contention_spans', kind=list_of_strs, default=None,
+                  description='''
+                  Names (or name prefixes) of the measured actions to run under
+                  background load, e.g. ``launch_cold``, ``rotation_``,
+                  ``keyboard_`` or a workload's own test tags. All measured
+                  actions are loaded if not given. The configured and achieved
+                  load are reported in contention.log.
+                  '''),
+    ]
+
     def __init__(self, device, _call_super=True, **kwargs):  # pylint: disable=W0613
         if _call_super:
             super(UiAutomatorWorkload, self).__init__(device, **kwargs)
@@ -75,7 +169,8 @@ class UiAutomatorWorkload(Workload):
     def init_resources(self, context):
         self.uiauto_file = context.resolver.get(wlauto.common.android.resources.JarFile(self))
         if not self.uiauto_file:
-            raise ResourceError('No UI automation JAR file found for workload {}.'.format(self.name))
+            raise ResourceError('No UI automation JAR file found for workload {}; build it with its '
+                                'uiauto/build.sh.'.format(self.name))
         self.device_uiauto_file = self.device.path.join(self.device.working_directory,
                                                         os.path.basename(self.uiauto_file))
         if not self.uiauto_package:
@@ -85,11 +180,29 @@ class UiAutomatorWorkload(Workload):
         method_string = '{}.{}#{}'.format(self.uiauto_package, self.uiauto_class, self.uiauto_method)
         params_dict = self.uiauto_params
         params_dict['workdir'] = self.device.working_directory
+        params_dict['selector_profile_enabled'] = self.selector_profile_enabled
+        params_dict['adaptive_timeouts_enabled'] = self.adaptive_timeouts_enabled
+        params_dict['navigation_replay_enabled'] = self.navigation_replay_enabled
+        params_dict['watchdog_enabled'] = self.watchdog_enabled
+        params_dict['watchdog_stall_secs'] = self.watchdog_stall_secs
+        params_dict['contention_cpu_threads'] = self.contention_cpu_threads
+        params_dict['contention_cpu_duty'] = self.contention_cpu_duty
+        params_dict['contention_memory_mb'] = self.contention_memory_mb
+        params_dict['contention_io'] = self.contention_io
+        params_dict['contention_io_rate'] = self.contention_io_rate
+        if self.contention_spans:
+            params_dict['contention_spans'] = ','.join(self.contention_spans)
+        if self.frame_source:
+            params_dict['frame_source'] = self.frame_source
         params = ''
         for k, v in self.uiauto_params.iteritems():
             params += ' -e {} {}'.format(k, v)
         self.command = 'uiautomator runtest {}{} -c {}'.format(self.device_uiauto_file, params, method_string)
         self.device.push_file(self.uiauto_file, self.device_uiauto_file)
+        for store in self._get_enabled_stores():
+            host_file = os.path.join(self.dependencies_directory, store)
+            if os.path.isfile(host_file):
+                self.device.push_file(host_file, self.device.path.join(self.device.working_directory, store))
         self.device.killall('uiautomator')
 
     def run(self, context):
@@ -101,7 +214,16 @@ class UiAutomatorWorkload(Workload):
         time.sleep(DELAY)
 
     def update_result(self, context):
-        pass
+        for report in self.uiauto_reports:
+            device_file = self.device.path.join(self.device.working_directory, report)
+            if self.device.file_exists(device_file):
+                self.device.pull_file(device_file, context.output_directory)
+                self.device.delete_file(device_file)
+        for store in self._get_enabled_stores():
+            device_file = self.device.path.join(self.device.working_directory, store)
+            if self.device.file_exists(device_file):
+                self.device.pull_file(device_file, self.dependencies_directory)
+                self.device.delete_file(device_file)
 
     def teardown(self, context):
         self.device.delete_file(self.device_uiauto_file)
@@ -112,6 +234,9 @@ class UiAutomatorWorkload(Workload):
         if not self.uiauto_package:
             raise WorkloadError('No UI automation package specified for workload {}.'.format(self.name))
 
+    def _get_enabled_stores(self):
+        return [store for param, store in self.uiauto_stores.iteritems() if getattr(self, param)]
+
 
 class ApkWorkload(Workload):
     """
@@ -171,14 +296,37 @@ class ApkWorkload(Workload):
                   If set to ``False``, this will prevent WA from clearing package
                   data for this workload prior to running it.
                   '''),
+        Parameter('app_state_snapshot', kind=boolean, default=False,
+                  description='''
+                  Have the UI automation take a snapshot of the app's data
+                  directory once it has walked the app's first-run screens, before
+                  the measured part of the first iteration, and restore it in
+                  place of clearing the data before each later iteration, so that
+                  onboarding is skipped. Requires a rooted device and a workload
+                  whose UI automation supports it, ignored otherwise.
+                  '''),
     ]
 
+    # Created in the working directory when a snapshot has been restored, so
+    # the UI automation knows to expect the post-onboarding state
+    app_state_marker = 'app_state.restored'
+
+    # Created in the working directory when there is no snapshot yet, asking
+    # the UI automation to take one into app_state_capture_file once it is past
+    # onboarding. Holds the data directory, busybox and the excluded entries.
+    app_state_request = 'app_state.capture'
+    app_state_capture_file = 'app_state.capture.tar'
+
+    # Entries of the data directory which are not part of the app's state
+    app_state_excluded = ['lib', 'cache', 'code_cache']
+
     def __init__(self, device, _call_super=True, **kwargs):
         if _call_super:
             super(ApkWorkload, self).__init__(device, **kwargs)
         self.apk_file = None
         self.apk_version = None
         self.logcat_log = None
+        self.app_state_restored = False
 
     def init_resources(self, context):
         self.apk_file = context.resolver.get(wlauto.common.android.resources.ApkFile(self),
@@ -199,6 +347,7 @@ class ApkWorkload(Workload):
             self.launch_package() # launch default activity without intent data
         self.device.execute('am kill-all')  # kill all *background* activities
         self.device.clear_logcat()
+        self.request_app_state_capture()
 
     def initialize_package(self, context):
         installed_version = self.device.get_installed_package_version(self.package)
@@ -259,12 +408,65 @@ class ApkWorkload(Workload):
         self.device.execute('am force-stop {}'.format(self.package))
         if self.clear_data_on_reset:
             self.device.execute('pm clear {}'.format(self.package))
+            self.app_state_restored = self.restore_app_state()
 
         # As of android API level 23, apps can request permissions at runtime,
         # this will grant all of them so requests do not pop up when running the app
         if self.device.get_sdk_version() >= 23:
             self._grant_requested_permissions()
 
+    def restore_app_state(self):
+        if not self.app_state_snapshot or not self.device.is_rooted:
+            return False
+        snapshot = self._get_app_state_file()
+        if not self.device.file_exists(snapshot):
+            return False
+
+        # Files must end up owned by the app's (possibly new) uid
+        data_dir = self._get_app_data_directory()
+        owner = self.device.execute('stat -c %u:%g {}'.format(data_dir),
+                                    as_root=True, busybox=True).strip()
+        self.device.execute('tar -xf {} -C {}'.format(snapshot, data_dir), as_root=True, busybox=True)
+        self.device.execute('chown -R {} {}'.format(owner, data_dir), as_root=True, busybox=True)
+        self.device.execute('restorecon -R {}'.format(data_dir), as_root=True, check_exit_code=False)
+        self.device.execute('echo {} > {}'.format(self.package, self._get_app_state_marker()))
+        self.logger.debug('Restored app state from {}'.format(snapshot))
+        return True
+
+    def request_app_state_capture(self):
+        if not self.app_state_snapshot or not self.device.is_rooted:
+            return
+        if self.device.file_exists(self._get_app_state_file()):
+            return
+        request = ' '.join([self._get_app_data_directory(), self.device.busybox,
+                            ','.join(self.app_state_excluded)])
+        self.device.execute('echo {} > {}'.format(request, self._get_app_state_path(self.app_state_request)))
+
+    def store_app_state(self):
+        if not self.app_state_snapshot or not self.device.is_rooted:
+            return
+        self.device.delete_file(self._get_app_state_path(self.app_state_request))
+        captured = self._get_app_state_path(self.app_state_capture_file)
+        if not self.device.file_exists(captured):
+            return
+        snapshot = self._get_app_state_file()
+        self.device.execute('mv {} {}'.format(captured, snapshot), as_root=True)
+        self.logger.debug('Captured app state to {}'.format(snapshot))
+
+    def _get_app_data_directory(self):
+        return '/data/data/{}'.format(self.package)
+
+    def _get_app_state_file(self):
+        # Keyed on the version as the state of a different version may not be compatible
+        return self.device.path.join(self.device.working_directory,
+                                     '{}-{}.app_state.tar'.format(self.package, self.apk_version))
+
+    def _get_app_state_marker(self):
+        return self._get_app_state_path(self.app_state_marker)
+
+    def _get_app_state_path(self, name):
+        return self.device.path.join(self.device.working_directory, name)
+
     def install_apk(self, context):
         success = False
         output = self.device.install(self.apk_file, self.install_timeout)
@@ -312,9 +514,15 @@ class ApkWorkload(Workload):
                                        path='logcat.log',
                                        kind='log',
                                        description='Logact dump for the run.')
+        self.store_app_state()
 
     def teardown(self, context):
         self.device.execute('am force-stop {}'.format(self.package))
+        if self.app_state_restored:
+            self.device.delete_file(self._get_app_state_marker())
+            self.app_state_restored = False
+        if self.app_state_snapshot and self.device.is_rooted:
+            self.device.delete_file(self._get_app_state_path(self.app_state_request))
         if self.uninstall_apk:
             self.device.uninstall(self.package)
 
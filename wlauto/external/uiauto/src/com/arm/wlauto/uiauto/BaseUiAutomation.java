@@ -18,7 +18,16 @@ package com.arm.wlauto.uiauto;
 
 import java.io.File;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 
@@ -26,8 +35,10 @@ import android.os.Bundle;
 import android.os.SystemClock;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.util.Log;
 
 // Import the uiautomator libraries
+import com.android.uiautomator.core.Configurator;
 import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
 import com.android.uiautomator.core.UiSelector;
@@ -35,6 +46,8 @@ import com.android.uiautomator.core.UiDevice;
 import com.android.uiautomator.core.UiWatcher;
 import com.android.uiautomator.testrunner.UiAutomatorTestCase;
 
+import com.arm.wlauto.uiauto.OverheadAccounting.Category;
+
 public class BaseUiAutomation extends UiAutomatorTestCase {
 
     public long uiAutoTimeout = TimeUnit.SECONDS.toMillis(4);
@@ -46,13 +59,330 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public static final int CLICK_REPEAT_INTERVAL_MINIMUM = 5;
     public static final int CLICK_REPEAT_INTERVAL_DEFAULT = 50;
 
+    public static final long QUIESCENCE_IDLE_WINDOW_DEFAULT = 300;
+
+    public static final String OVERHEAD_LOG = "overhead.log";
+    public static final String SELECTOR_PROFILE_LOG = "selector_profile.log";
+    public static final String TIMEOUT_MODEL_LOG = "timeout_model.log";
+    public static final String TIMEOUT_MODEL_STORE = "timeout_model.dat";
+    public static final String NAVIGATION_REPLAY_LOG = "navigation_replay.log";
+    public static final String NAVIGATION_REPLAY_STORE = "navigation_replay.dat";
+    public static final long NAVIGATION_REPLAY_WAIT_MILLIS = 1000;
+    public static final String WATCHDOG_LOG = "watchdog.log";
+    public static final long WATCHDOG_STALL_DEFAULT = TimeUnit.SECONDS.toMillis(30);
+    public static final String CONTENTION_LOG = "contention.log";
+    public static final String CONTENTION_IO_FILE = "contention.tmp";
+
+    protected OverheadAccounting overhead = new OverheadAccounting();
+    protected SelectorProfiler selectorProfiler = null;
+    protected TimeoutModel timeoutModel = null;
+    protected NavigationReplay navigationReplay = null;
+    protected Watchdog watchdog = null;
+    protected ContentionGenerator contention = null;
+    // Whether each open measured span, innermost first, is loaded
+    private LinkedList<Boolean> measuredSpans = new LinkedList<Boolean>();
+
     /*
      * Used by clickUiObject() methods in order to provide a consistent API
      */
     public enum FindByCriteria { BY_ID, BY_TEXT, BY_DESC; }
 
     public void sleep(int second) {
-        super.sleep(second * 1000);
+        overhead.begin(Category.SLEEP);
+        try {
+            if (watchdog == null) {
+                super.sleep(second * 1000);
+                return;
+            }
+            long deadline = SystemClock.uptimeMillis() + second * 1000;
+            for (long remaining = second * 1000; remaining > 0;
+                    remaining = deadline - SystemClock.uptimeMillis()) {
+                super.sleep(Math.min(remaining, Watchdog.SLICE_MILLIS));
+                watchdog.check(-1);
+            }
+        } finally {
+            overhead.end();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Boolean.parseBoolean(getParams().getString("selector_profile_enabled"))) {
+            selectorProfiler = new SelectorProfiler(getUiDevice());
+        }
+        // The stores are kept on the host between runs (see UiAutomatorWorkload)
+        if (Boolean.parseBoolean(getParams().getString("adaptive_timeouts_enabled"))) {
+            timeoutModel = new TimeoutModel(new File(getParams().getString("workdir"),
+                                                     TIMEOUT_MODEL_STORE));
+        }
+        if (Boolean.parseBoolean(getParams().getString("navigation_replay_enabled"))) {
+            navigationReplay = new NavigationReplay(new File(getParams().getString("workdir"),
+                                                             NAVIGATION_REPLAY_STORE));
+        }
+        if (Boolean.parseBoolean(getParams().getString("watchdog_enabled"))) {
+            String stall = getParams().getString("watchdog_stall_secs");
+            long stallMillis = (stall == null)
+                             ? WATCHDOG_STALL_DEFAULT : TimeUnit.SECONDS.toMillis(Long.parseLong(stall));
+            watchdog = new Watchdog(this, getParams().getString("package"), stallMillis);
+            watchdog.start();
+        }
+        contention = ContentionGenerator.fromParameters(getParams(),
+                                                        new File(getParams().getString("workdir"),
+                                                                 CONTENTION_IO_FILE));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File workdir = new File(getParams().getString("workdir"));
+        if (watchdog != null) {
+            watchdog.finish();
+        }
+        if (contention != null) {
+            contention.cleanUp();
+        }
+        try {
+            overhead.writeResults(new File(workdir, OVERHEAD_LOG));
+            if (selectorProfiler != null) {
+                selectorProfiler.writeResults(new File(workdir, SELECTOR_PROFILE_LOG));
+            }
+            if (timeoutModel != null) {
+                timeoutModel.save();
+                timeoutModel.writeResults(new File(workdir, TIMEOUT_MODEL_LOG));
+            }
+            if (navigationReplay != null) {
+                navigationReplay.save();
+                navigationReplay.writeResults(new File(workdir, NAVIGATION_REPLAY_LOG));
+            }
+            if (watchdog != null) {
+                watchdog.writeResults(new File(workdir, WATCHDOG_LOG));
+            }
+            if (contention != null) {
+                contention.writeResults(new File(workdir, CONTENTION_LOG));
+            }
+        } catch (IOException e) {
+            Log.w("BaseUiAutomation", "Unable to write overhead accounting", e);
+        }
+        super.tearDown();
+    }
+
+    public boolean waitForQuiescence(long maxWaitMillis) {
+        return waitForQuiescence(maxWaitMillis, QUIESCENCE_IDLE_WINDOW_DEFAULT);
+    }
+
+    /*
+     * Waits until the foreground app has settled, i.e. its layer has
+     * presented no new frames and its window content has not changed for
+     * idleWindowMillis. Use in place of a fixed sleep after an action whose
+     * animation has to finish before the next step. Returns false if the
+     * screen was still changing after maxWaitMillis.
+     *
+     * Frame data is only used where getLastFrameTime() is implemented,
+     * otherwise only accessibility events are considered.
+     */
+    public boolean waitForQuiescence(long maxWaitMillis, long idleWindowMillis) {
+        overhead.begin(Category.WAIT);
+        try {
+            return pollForQuiescence(maxWaitMillis, idleWindowMillis);
+        } finally {
+            overhead.end();
+        }
+    }
+
+    private boolean pollForQuiescence(long maxWaitMillis, long idleWindowMillis) {
+        long deadline = SystemClock.uptimeMillis() + maxWaitMillis;
+        String appPackage = getUiDevice().getCurrentPackageName();
+
+        while (true) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            long window = Math.min(idleWindowMillis, remaining);
+            long windowStart = System.nanoTime();
+
+            if (getUiDevice().waitForWindowUpdate(appPackage, window)) {
+                continue;
+            }
+            // waitForWindowUpdate() returns straight away if another app
+            // has come to the foreground, so follow it instead
+            String currentPackage = getUiDevice().getCurrentPackageName();
+            if (currentPackage != null && !currentPackage.equals(appPackage)) {
+                appPackage = currentPackage;
+                continue;
+            }
+            if (window < idleWindowMillis) {
+                return false;
+            }
+            if (getLastFrameTime(appPackage) >= windowStart) {
+                continue;
+            }
+            return true;
+        }
+    }
+
+    // Returns the present time (CLOCK_MONOTONIC ns) of the last frame
+    // presented by the package's layer, or -1 if frame data is unavailable
+    protected long getLastFrameTime(String appPackage) {
+        return -1;
+    }
+
+    // Returns {desired, actual} present times of the frames presented by the
+    // package's layer since notBefore, or none if frame data is unavailable
+    protected List<long[]> getPresentedFrames(String appPackage, long notBefore) {
+        return new ArrayList<long[]>();
+    }
+
+    // Returns the display refresh period (ns)
+    protected long getRefreshPeriod() {
+        return FrameClassifier.DEFAULT_REFRESH_PERIOD;
+    }
+
+    // Returns the pid of the package's process, or -1 if it is not running
+    // or the pid cannot be determined
+    protected int getAppPid(String appPackage) {
+        return -1;
+    }
+
+    /*
+     * To be called before deliberately stopping or relaunching the app so
+     * that the watchdog does not report the new process as a crash
+     */
+    public void expectAppRestart() {
+        if (watchdog != null) {
+            watchdog.expectRestart();
+        }
+    }
+
+    // Nearest-rank percentile of values, or -1 if there are none
+    public static long percentile(List<Long> values, int percent) {
+        if (values.isEmpty()) {
+            return -1;
+        }
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(sorted.size() * percent / 100.0) - 1;
+        return sorted.get(Math.min(Math.max(index, 0), sorted.size() - 1));
+    }
+
+    public static final long ROTATION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final long ROTATION_IDLE_MILLIS = 500;
+    public static final int[] ROTATION_PERCENTILES = {50, 90, 99};
+
+    private static final ScreenOrientation[] ROTATION_SEQUENCE = {
+        ScreenOrientation.LEFT, ScreenOrientation.NATURAL,
+        ScreenOrientation.RIGHT, ScreenOrientation.NATURAL
+    };
+
+    public static class RotationResult {
+        private long refreshPeriod;
+        private int rotations = 0;
+        private Map<String, List<Long>> latencies = new LinkedHashMap<String, List<Long>>();
+        private Map<String, FrameClassifier> frames = new LinkedHashMap<String, FrameClassifier>();
+        private Map<String, Integer> unsettled = new LinkedHashMap<String, Integer>();
+
+        public RotationResult(long refreshPeriod) {
+            this.refreshPeriod = refreshPeriod;
+        }
+
+        // start is when the rotation was requested and latency is -1 if
+        // the screen did not settle after it
+        public void add(String rotation, long start, long latency, List<long[]> presented) {
+            if (!latencies.containsKey(rotation)) {
+                latencies.put(rotation, new ArrayList<Long>());
+                frames.put(rotation, new FrameClassifier(refreshPeriod));
+                unsettled.put(rotation, 0);
+            }
+            rotations++;
+            if (latency < 0) {
+                unsettled.put(rotation, unsettled.get(rotation) + 1);
+            } else {
+                latencies.get(rotation).add(latency);
+            }
+            frames.get(rotation).addInput(start);
+            for (long[] frame : presented) {
+                frames.get(rotation).addFrame(frame[1]);
+            }
+        }
+
+        public void writeResults(File file) throws IOException {
+            List<Long> all = new ArrayList<Long>();
+            BufferedWriter out = new BufferedWriter(new FileWriter(file));
+            try {
+                out.write(String.format("rotations %d\n", rotations));
+                for (String rotation : latencies.keySet()) {
+                    List<Long> values = latencies.get(rotation);
+                    FrameClassifier classifier = frames.get(rotation);
+                    all.addAll(values);
+                    for (int percent : ROTATION_PERCENTILES) {
+                        out.write(String.format("%s_latency_p%d_ms %.2f\n", rotation, percent,
+                                                values.isEmpty() ? -1.0 : percentile(values, percent) / 1e6));
+                    }
+                    out.write(String.format("%s_frames %d\n", rotation, classifier.getFrameCount()));
+                    out.write(String.format("%s_jank_pct %.2f\n", rotation, classifier.getFrameCount() == 0
+                                            ? 0.0 : classifier.getLateCount() * 100.0 / classifier.getFrameCount()));
+                    out.write(String.format("%s_unsettled %d\n", rotation, unsettled.get(rotation)));
+                }
+                for (int percent : ROTATION_PERCENTILES) {
+                    out.write(String.format("rotation_latency_p%d_ms %.2f\n", percent,
+                                            all.isEmpty() ? -1.0 : percentile(all, percent) / 1e6));
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /*
+     * Rotates the display from natural to left, natural, right and back to
+     * natural, repetitions times, to measure how long the foreground app
+     * takes to handle the configuration change (activity recreation,
+     * relayout and reloading its content). Run it with a document or photo
+     * open so that there is real content to lay out again.
+     *
+     * A rotation's latency runs from requesting it to the last frame the
+     * app presented before its layer stopped updating for 500 ms, i.e. its
+     * first stable frame in the new orientation. The frames presented in
+     * between are classified for jank. Results are kept per rotation, e.g.
+     * natural_left, with latency percentiles across the repetitions. Where
+     * no frame data is available the latency is the time until the screen
+     * became quiescent, less the idle window.
+     *
+     * The display is left frozen in its natural orientation.
+     */
+    public RotationResult runRotationBenchmark(int repetitions) throws Exception {
+        String appPackage = getUiDevice().getCurrentPackageName();
+        RotationResult result = new RotationResult(getRefreshPeriod());
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(ROTATION_IDLE_MILLIS);
+
+        setScreenOrientation(ScreenOrientation.NATURAL);
+        waitForQuiescence(ROTATION_TIMEOUT_MILLIS, ROTATION_IDLE_MILLIS);
+
+        ScreenOrientation from = ScreenOrientation.NATURAL;
+        for (int i = 0; i < repetitions; i++) {
+            for (ScreenOrientation to : ROTATION_SEQUENCE) {
+                String rotation = from.name().toLowerCase() + "_" + to.name().toLowerCase();
+                beginMeasuredSpan("rotation_" + rotation);
+                long start = System.nanoTime();
+                setScreenOrientation(to);
+                boolean settled = waitForQuiescence(ROTATION_TIMEOUT_MILLIS, ROTATION_IDLE_MILLIS);
+                long settledAt = System.nanoTime();
+                endMeasuredSpan();
+
+                List<long[]> presented = getPresentedFrames(appPackage, start);
+                long latency = -1;
+                if (settled) {
+                    long lastPresent = -1;
+                    for (long[] frame : presented) {
+                        lastPresent = Math.max(lastPresent, frame[1]);
+                    }
+                    latency = (lastPresent < 0) ? settledAt - idleNanos - start : lastPresent - start;
+                }
+                result.add(rotation, start, latency, presented);
+                from = to;
+            }
+        }
+        return result;
     }
 
     public boolean takeScreenshot(String name) {
@@ -82,14 +412,83 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     }
 
     public void waitObject(UiObject obj, int second) throws UiObjectNotFoundException {
-        if (!obj.waitForExists(second * 1000)) {
+        if (!resolve(obj, second * 1000, Category.WAIT)) {
             throw new UiObjectNotFoundException("UiObject is not found: "
                     + obj.getSelector().toString());
         }
     }
 
+    // Waits for obj to exist, accounting the time against category and,
+    // if enabled, the selector profiler. With adaptive timeouts enabled the
+    // wait may be cut short to the timeout learned for this lookup.
+    private boolean resolve(UiObject obj, long timeout, Category category) {
+        String modelKey = null;
+        long modelTimeout = timeout;
+        if (timeoutModel != null) {
+            modelKey = TimeoutModel.getKey(obj.getSelector());
+            modelTimeout = timeoutModel.getTimeout(modelKey, timeout);
+        }
+
+        boolean found = false;
+        overhead.begin(category);
+        long startTime = System.nanoTime();
+        try {
+            found = waitForExists(obj, modelTimeout);
+            return found;
+        } finally {
+            long elapsed = System.nanoTime() - startTime;
+            overhead.end();
+            if (selectorProfiler != null) {
+                selectorProfiler.record(obj.getSelector(), elapsed, found, !measuredSpans.isEmpty());
+            }
+            if (timeoutModel != null) {
+                timeoutModel.record(modelKey, timeout, modelTimeout,
+                                    TimeUnit.NANOSECONDS.toMillis(elapsed), found);
+            }
+        }
+    }
+
     public boolean waitUntilNoObject(UiObject obj, int second) {
-        return obj.waitUntilGone(second * 1000);
+        overhead.begin(Category.WAIT);
+        try {
+            if (watchdog == null) {
+                return obj.waitUntilGone(second * 1000);
+            }
+            long waitStart = System.nanoTime();
+            long deadline = SystemClock.uptimeMillis() + second * 1000;
+            while (true) {
+                long remaining = Math.max(deadline - SystemClock.uptimeMillis(), 0);
+                if (obj.waitUntilGone(Math.min(remaining, Watchdog.SLICE_MILLIS))) {
+                    return true;
+                }
+                if (remaining <= Watchdog.SLICE_MILLIS) {
+                    return false;
+                }
+                watchdog.check(waitStart);
+            }
+        } finally {
+            overhead.end();
+        }
+    }
+
+    // With the watchdog running, waits in slices so that a hung or crashed
+    // app aborts the wait within a second rather than at its timeout
+    private boolean waitForExists(UiObject obj, long timeout) {
+        if (watchdog == null) {
+            return obj.waitForExists(timeout);
+        }
+        long waitStart = System.nanoTime();
+        long deadline = SystemClock.uptimeMillis() + timeout;
+        while (true) {
+            long remaining = Math.max(deadline - SystemClock.uptimeMillis(), 0);
+            if (obj.waitForExists(Math.min(remaining, Watchdog.SLICE_MILLIS))) {
+                return true;
+            }
+            if (remaining <= Watchdog.SLICE_MILLIS) {
+                return false;
+            }
+            watchdog.check(waitStart);
+        }
     }
 
     public void clearLogcat() throws Exception {
@@ -396,6 +795,71 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     }
 
     public UiObject clickUiObject(FindByCriteria criteria, String matching, String clazz, boolean wait) throws Exception {
+        overhead.begin(Category.CLICK);
+        try {
+            return findAndClickUiObject(criteria, matching, clazz, wait);
+        } finally {
+            overhead.end();
+        }
+    }
+
+    /*
+     * Measured actions should bracket themselves with these so that clicks
+     * made while measuring always go through the full selector resolution,
+     * even with navigation replay enabled, and so that the watchdog does not
+     * poll the device while they run. A span whose name is selected by the
+     * contention parameters runs under the configured background load,
+     * unless it is nested in a span that already does.
+     */
+    public void beginMeasuredSpan(String name) {
+        if (measuredSpans.isEmpty() && watchdog != null) {
+            watchdog.pausePolling();
+        }
+        measuredSpans.push(contention != null && contention.start(name));
+    }
+
+    public void endMeasuredSpan() {
+        if (measuredSpans.isEmpty()) {
+            return;
+        }
+        if (measuredSpans.pop()) {
+            contention.stop();
+        }
+        if (measuredSpans.isEmpty() && watchdog != null) {
+            watchdog.resumePolling();
+        }
+    }
+
+    // Ends every span still open, e.g. after an action failed part way
+    // through, so that the watchdog, contention and navigation replay are
+    // back to their state between spans
+    public void abortMeasuredSpans() {
+        while (!measuredSpans.isEmpty()) {
+            endMeasuredSpan();
+        }
+    }
+
+    private UiObject findAndClickUiObject(FindByCriteria criteria, String matching, String clazz, boolean wait) throws Exception {
+        // Only plain navigation clicks are replayed, clickAndWaitForNewWindow()
+        // relies on the view having been resolved
+        String replayKey = null;
+        if (navigationReplay != null && !wait && measuredSpans.isEmpty()) {
+            UiSelector selector = getClickSelector(criteria, matching, clazz);
+            replayKey = navigationReplay.nextKey(selector);
+            NavigationReplay.Target target = navigationReplay.getRecording(replayKey);
+            if (target != null) {
+                // Waiting for the recorded view, rather than tapping straight
+                // away, lets the screen it is on finish appearing
+                if (target.bounds.equals(findVisibleBounds(target.getSelector(),
+                                                           NAVIGATION_REPLAY_WAIT_MILLIS))) {
+                    navigationReplay.replayed();
+                    getUiDevice().click(target.bounds.centerX(), target.bounds.centerY());
+                    return new UiObject(selector);
+                }
+                navigationReplay.mismatched();
+            }
+        }
+
         UiObject view;
 
         switch (criteria) {
@@ -414,6 +878,10 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
                 break;
         }
 
+        if (replayKey != null) {
+            navigationReplay.record(replayKey, NavigationReplay.Target.of(view));
+        }
+
         if (wait) {
             view.clickAndWaitForNewWindow();
         } else {
@@ -422,6 +890,42 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
         return view;
     }
 
+    // Returns the visible bounds of the view matching selector, waiting up
+    // to timeout for it, or null if it is not shown. Unlike waitForExists()
+    // followed by getVisibleBounds() this looks the view up only once.
+    private Rect findVisibleBounds(UiSelector selector, long timeout) {
+        Configurator configurator = Configurator.getInstance();
+        long selectorTimeout = configurator.getWaitForSelectorTimeout();
+        overhead.begin(Category.LOOKUP);
+        try {
+            configurator.setWaitForSelectorTimeout(timeout);
+            return new UiObject(selector).getVisibleBounds();
+        } catch (UiObjectNotFoundException e) {
+            return null;
+        } finally {
+            configurator.setWaitForSelectorTimeout(selectorTimeout);
+            overhead.end();
+        }
+    }
+
+    // Must match the selectors built by the getUiObjectBy* methods
+    private UiSelector getClickSelector(FindByCriteria criteria, String matching, String clazz) {
+        UiSelector selector;
+        switch (criteria) {
+            case BY_ID:
+                selector = new UiSelector().resourceId(matching);
+                break;
+            case BY_DESC:
+                selector = new UiSelector().descriptionContains(matching);
+                break;
+            case BY_TEXT:
+            default:
+                selector = new UiSelector().textContains(matching);
+                break;
+        }
+        return (clazz == null) ? selector : selector.className(clazz);
+    }
+
     public UiObject getUiObjectByResourceId(String resourceId, String className) throws Exception {
         return getUiObjectByResourceId(resourceId, className, uiAutoTimeout);
     }
@@ -429,7 +933,7 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public UiObject getUiObjectByResourceId(String resourceId, String className, long timeout) throws Exception {
         UiObject object = new UiObject(new UiSelector().resourceId(resourceId)
                                                        .className(className));
-        if (!object.waitForExists(timeout)) {
+        if (!resolve(object, timeout, Category.LOOKUP)) {
            throw new UiObjectNotFoundException(String.format("Could not find \"%s\" \"%s\"",
                                                               resourceId, className));
         }
@@ -439,7 +943,7 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public UiObject getUiObjectByResourceId(String id) throws Exception {
         UiObject object = new UiObject(new UiSelector().resourceId(id));
 
-        if (!object.waitForExists(uiAutoTimeout)) {
+        if (!resolve(object, uiAutoTimeout, Category.LOOKUP)) {
            throw new UiObjectNotFoundException("Could not find view with resource ID: " + id);
         }
         return object;
@@ -452,7 +956,7 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public UiObject getUiObjectByDescription(String description, String className, long timeout) throws Exception {
         UiObject object = new UiObject(new UiSelector().descriptionContains(description)
                                                        .className(className));
-        if (!object.waitForExists(timeout)) {
+        if (!resolve(object, timeout, Category.LOOKUP)) {
             throw new UiObjectNotFoundException(String.format("Could not find \"%s\" \"%s\"",
                                                               description, className));
         }
@@ -462,7 +966,7 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public UiObject getUiObjectByDescription(String desc) throws Exception {
         UiObject object = new UiObject(new UiSelector().descriptionContains(desc));
 
-        if (!object.waitForExists(uiAutoTimeout)) {
+        if (!resolve(object, uiAutoTimeout, Category.LOOKUP)) {
            throw new UiObjectNotFoundException("Could not find view with description: " + desc);
         }
         return object;
@@ -475,7 +979,7 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public UiObject getUiObjectByText(String text, String className, long timeout) throws Exception {
         UiObject object = new UiObject(new UiSelector().textContains(text)
                                                        .className(className));
-        if (!object.waitForExists(timeout)) {
+        if (!resolve(object, timeout, Category.LOOKUP)) {
             throw new UiObjectNotFoundException(String.format("Could not find \"%s\" \"%s\"",
                                                               text, className));
         }
@@ -485,7 +989,7 @@ public class BaseUiAutomation extends UiAutomatorTestCase {
     public UiObject getUiObjectByText(String text) throws Exception {
         UiObject object = new UiObject(new UiSelector().textContains(text));
 
-        if (!object.waitForExists(uiAutoTimeout)) {
+        if (!resolve(object, uiAutoTimeout, Category.LOOKUP)) {
            throw new UiObjectNotFoundException("Could not find view with text: " + text);
         }
         return object;
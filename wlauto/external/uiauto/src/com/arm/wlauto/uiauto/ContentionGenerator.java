@@ -0,0 +1,336 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import android.os.Bundle;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Generates background load while selected spans are measured, so UX can
+ * be measured on a device that is also busy with e.g. sync or downloads:
+ *
+ *   contention_cpu_threads  - number of threads spinning at
+ *   contention_cpu_duty       percent of each 10 ms period
+ *   contention_memory_mb    - MB allocated and kept touched
+ *   contention_io           - none, sequential or random writes at
+ *   contention_io_rate        KB/s, synced to storage
+ *   contention_spans        - comma separated span name prefixes to load,
+ *                             all spans if not given
+ *
+ * The load runs in the automation process. Memory is allocated on the
+ * Java heap, so the amount held is capped by the process heap limit; the
+ * amount actually achieved is reported alongside the configuration.
+ */
+public class ContentionGenerator {
+
+    public enum IoPattern { NONE, SEQUENTIAL, RANDOM };
+
+    public static final long DUTY_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    public static final long TOUCH_INTERVAL_MILLIS = 1000;
+    public static final long IO_INTERVAL_MILLIS = 100;
+    public static final int IO_BLOCK_SIZE = 4096;
+    public static final long IO_FILE_SIZE = 64 * 1024 * 1024;
+    public static final int PAGE_SIZE = 4096;
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static class SpanStats {
+        String name;
+        long duration;
+        long cpuBusy;
+        int memoryMb;
+        long ioBytes;
+    }
+
+    private int cpuThreads;
+    private int cpuDuty;
+    private int memoryMb;
+    private IoPattern ioPattern;
+    private int ioRate;
+    private File ioFile;
+    private String[] spans;
+
+    private volatile boolean running = false;
+    private List<Thread> threads = new ArrayList<Thread>();
+    private List<byte[]> memory = new ArrayList<byte[]>();
+    private AtomicLong cpuBusy = new AtomicLong();
+    private AtomicLong ioBytes = new AtomicLong();
+    private SpanStats active = null;
+    private long spanStart;
+    private List<SpanStats> results = new ArrayList<SpanStats>();
+
+    /*
+     * Returns a generator configured from the automation parameters, or
+     * null if no load has been asked for
+     */
+    public static ContentionGenerator fromParameters(Bundle parameters, File ioFile) {
+        int cpuThreads = getInt(parameters, "contention_cpu_threads", 0);
+        int memoryMb = getInt(parameters, "contention_memory_mb", 0);
+        String io = parameters.getString("contention_io");
+        IoPattern ioPattern = (io == null) ? IoPattern.NONE : IoPattern.valueOf(io.toUpperCase(Locale.US));
+        if (cpuThreads <= 0 && memoryMb <= 0 && ioPattern == IoPattern.NONE) {
+            return null;
+        }
+        String spans = parameters.getString("contention_spans");
+        return new ContentionGenerator(cpuThreads, getInt(parameters, "contention_cpu_duty", 50),
+                                       memoryMb, ioPattern, getInt(parameters, "contention_io_rate", 1024),
+                                       ioFile, (spans == null || spans.isEmpty()) ? null : spans.split(","));
+    }
+
+    public ContentionGenerator(int cpuThreads, int cpuDuty, int memoryMb, IoPattern ioPattern,
+                               int ioRate, File ioFile, String[] spans) {
+        this.cpuThreads = Math.max(cpuThreads, 0);
+        this.cpuDuty = Math.min(Math.max(cpuDuty, 1), 100);
+        this.memoryMb = Math.max(memoryMb, 0);
+        this.ioPattern = ioPattern;
+        this.ioRate = Math.max(ioRate, 1);
+        this.ioFile = ioFile;
+        this.spans = spans;
+    }
+
+    public boolean covers(String span) {
+        if (spans == null) {
+            return true;
+        }
+        for (String prefix : spans) {
+            if (span.startsWith(prefix.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Starts loading the device for the named span. Memory is allocated
+     * before returning so the pressure is in place when the span starts.
+     * Returns false, and does nothing, if the span is not selected or a
+     * span is already being loaded.
+     */
+    public boolean start(String span) {
+        if (active != null || !covers(span)) {
+            return false;
+        }
+        active = new SpanStats();
+        active.name = span;
+        cpuBusy.set(0);
+        ioBytes.set(0);
+        running = true;
+
+        allocateMemory();
+        active.memoryMb = memory.size() * CHUNK_SIZE / (1024 * 1024);
+        if (!memory.isEmpty()) {
+            startThread(new Runnable() {
+                public void run() {
+                    touchMemory();
+                }
+            });
+        }
+        for (int i = 0; i < cpuThreads; i++) {
+            startThread(new Runnable() {
+                public void run() {
+                    loadCpu();
+                }
+            });
+        }
+        if (ioPattern != IoPattern.NONE) {
+            startThread(new Runnable() {
+                public void run() {
+                    writeStorage();
+                }
+            });
+        }
+        spanStart = System.nanoTime();
+        return true;
+    }
+
+    public void stop() {
+        if (active == null) {
+            return;
+        }
+        active.duration = System.nanoTime() - spanStart;
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                thread.interrupt();
+            }
+        }
+        threads.clear();
+        memory.clear();
+        System.gc();
+
+        active.cpuBusy = cpuBusy.get();
+        active.ioBytes = ioBytes.get();
+        results.add(active);
+        active = null;
+    }
+
+    public void writeResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(String.format("contention_cpu_threads %d\n", cpuThreads));
+            out.write(String.format("contention_cpu_duty %d\n", cpuDuty));
+            out.write(String.format("contention_memory_mb %d\n", memoryMb));
+            out.write(String.format("contention_io %s\n", ioPattern.name().toLowerCase(Locale.US)));
+            out.write(String.format("contention_io_rate %d\n", ioRate));
+            for (SpanStats span : results) {
+                long durationMs = TimeUnit.NANOSECONDS.toMillis(span.duration);
+                long cpuCapacity = span.duration * Math.max(cpuThreads, 1);
+                out.write(String.format("%s_duration_ms %d\n", span.name, durationMs));
+                out.write(String.format("%s_cpu_duty %d\n", span.name,
+                                        cpuThreads == 0 ? 0 : span.cpuBusy * 100 / Math.max(cpuCapacity, 1)));
+                out.write(String.format("%s_memory_mb %d\n", span.name, span.memoryMb));
+                out.write(String.format("%s_io_kb %d\n", span.name, span.ioBytes / 1024));
+                out.write(String.format("%s_io_rate %d\n", span.name,
+                                        durationMs == 0 ? 0 : span.ioBytes * 1000 / 1024 / durationMs));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public void cleanUp() {
+        stop();
+        ioFile.delete();
+    }
+
+    private void startThread(Runnable load) {
+        Thread thread = new Thread(load, "Contention");
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void allocateMemory() {
+        try {
+            for (int i = 0; i < memoryMb; i++) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                touch(chunk);
+                memory.add(chunk);
+            }
+        } catch (OutOfMemoryError e) {
+            // Keep what fit within the heap limit, the achieved amount is reported
+        }
+    }
+
+    // Keeps the allocation resident by writing to every page of it
+    private void touchMemory() {
+        while (running) {
+            for (int i = 0; i < memory.size() && running; i++) {
+                touch(memory.get(i));
+            }
+            pause(TOUCH_INTERVAL_MILLIS);
+        }
+    }
+
+    private static void touch(byte[] chunk) {
+        for (int offset = 0; offset < chunk.length; offset += PAGE_SIZE) {
+            chunk[offset]++;
+        }
+    }
+
+    private void loadCpu() {
+        long busyNanos = DUTY_PERIOD_NANOS * cpuDuty / 100;
+        long sink = 0;
+        while (running) {
+            long periodStart = System.nanoTime();
+            long now = periodStart;
+            while (now - periodStart < busyNanos) {
+                for (int i = 0; i < 1000; i++) {
+                    sink += i * now;
+                }
+                now = System.nanoTime();
+            }
+            cpuBusy.addAndGet(now - periodStart);
+            long idleNanos = DUTY_PERIOD_NANOS - (now - periodStart);
+            if (idleNanos > 0) {
+                pause(TimeUnit.NANOSECONDS.toMillis(idleNanos));
+            }
+        }
+        if (sink == 42) {
+            // Stops the loop above being optimised away
+            cpuBusy.incrementAndGet();
+        }
+    }
+
+    private void writeStorage() {
+        byte[] block = new byte[IO_BLOCK_SIZE];
+        new Random().nextBytes(block);
+        long bytesPerInterval = (long) ioRate * 1024 * IO_INTERVAL_MILLIS / 1000;
+        long blocks = IO_FILE_SIZE / IO_BLOCK_SIZE;
+        Random random = new Random();
+        long position = 0;
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(ioFile, "rw");
+            while (running) {
+                long intervalStart = System.nanoTime();
+                for (long written = 0; written < bytesPerInterval; written += IO_BLOCK_SIZE) {
+                    if (ioPattern == IoPattern.RANDOM) {
+                        position = (long) random.nextInt((int) blocks) * IO_BLOCK_SIZE;
+                    } else {
+                        position = (position + IO_BLOCK_SIZE) % IO_FILE_SIZE;
+                    }
+                    file.seek(position);
+                    file.write(block);
+                    ioBytes.addAndGet(IO_BLOCK_SIZE);
+                }
+                // Make sure the writes reach storage rather than the page cache
+                file.getFD().sync();
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - intervalStart);
+                pause(IO_INTERVAL_MILLIS - elapsed);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int getInt(Bundle parameters, String key, int defaultValue) {
+        String value = parameters.getString(key);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,333 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Classifies the frames of a "dumpsys SurfaceFlinger --latency" capture
+ * against the display's actual refresh period rather than assuming 60Hz.
+ *
+ * The first column of the capture is when an app's buffer was queued, not
+ * a present deadline, so frames are judged by the interval since the
+ * previous frame was presented. Each interval is measured in refresh
+ * periods and compared with the content's own cadence, the interval it
+ * keeps for at least a quarter of its frames (CONTENT_CADENCE_PERCENTILE),
+ * so that content animating at 60fps is on time on a 120Hz panel too.
+ * A frame that arrives one content frame late is janky, and later ones are
+ * counted as missed by N content frames.
+ *
+ * An interval of more than IDLE_GAP_VSYNCS during which input was injected
+ * (see addInput) is an idle gap: the app had nothing to draw until the
+ * input arrived, so the frame after it starts a new run and the gap is
+ * left out of the frame times and FPS. Any other long interval is a missed
+ * frame.
+ *
+ * The refresh period is tracked across the span: when an interval is not
+ * a whole number of the current period but is one or two periods of
+ * another common or reported rate, the display is taken to have switched
+ * to that rate. Rates close enough for intervals to fit both, e.g. 60Hz
+ * and 120Hz, cannot be told apart this way, but content cadence is judged
+ * in ns so those switches do not affect the counts.
+ */
+public class FrameClassifier {
+
+    public static final long DEFAULT_REFRESH_PERIOD = 16666667;  // ns (60Hz)
+    public static final int MISSED_VSYNCS_MAX = 4;
+    public static final int IDLE_GAP_VSYNCS = 12;
+    public static final int CONTENT_CADENCE_PERCENTILE = 25;
+    // How far from a whole number of periods an interval may be and still fit
+    public static final double PERIOD_TOLERANCE = 0.15;
+    public static final int[] COMMON_REFRESH_RATES = {30, 48, 50, 60, 72, 90, 96, 120, 144};
+
+    private long startPeriod;
+    private long endPeriod;
+    private long period;
+    private int periodSwitches = 0;
+
+    private int frames = 0;
+    private int idleGaps = 0;
+    private TreeSet<Long> inputs = new TreeSet<Long>();
+    // Present-to-present intervals and the refresh period each was judged against
+    private List<Long> intervals = new ArrayList<Long>();
+    private List<Long> periods = new ArrayList<Long>();
+    private long lastPresent = 0;
+
+    // Classification of the intervals, worked out when first needed
+    private boolean classified = false;
+    private long contentPeriod = 0;
+    private int onTime = 0;
+    private int janky = 0;
+    private Map<Integer, Integer> missed = new TreeMap<Integer, Integer>();
+
+    public FrameClassifier(long startPeriod) {
+        this.startPeriod = (startPeriod > 0) ? startPeriod : DEFAULT_REFRESH_PERIOD;
+        this.endPeriod = this.startPeriod;
+        this.period = this.startPeriod;
+    }
+
+    public void parse(File surfFlingerLog) throws IOException {
+        parse(surfFlingerLog, 0);
+    }
+
+    // Frames presented before notBefore (CLOCK_MONOTONIC ns) are ignored
+    public void parse(File surfFlingerLog, long notBefore) throws IOException {
+        long period = readRefreshPeriod(surfFlingerLog);
+        if (period > 0) {
+            endPeriod = period;
+        }
+        for (long[] frame : readFrames(surfFlingerLog, notBefore)) {
+            addFrame(frame[1]);
+        }
+    }
+
+    // Records that input was injected at time (CLOCK_MONOTONIC ns); must
+    // be called before the frames presented after it are added
+    public void addInput(long time) {
+        inputs.add(time);
+    }
+
+    // Frames must be added in order of their actual present time
+    public void addFrame(long actual) {
+        classified = false;
+        if (frames > 0) {
+            long interval = actual - lastPresent;
+            Long input = inputs.lower(actual);
+            boolean idle = input != null && input > lastPresent
+                           && Math.round(interval / (double) period) > IDLE_GAP_VSYNCS;
+            if (idle) {
+                idleGaps++;
+            } else {
+                intervals.add(interval);
+                periods.add(trackPeriod(interval));
+            }
+        }
+        lastPresent = actual;
+        frames++;
+    }
+
+    public void setEndPeriod(long endPeriod) {
+        this.endPeriod = endPeriod;
+    }
+
+    public boolean refreshPeriodChanged() {
+        return periodSwitches > 0 || startPeriod != endPeriod;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    // Frame rate while the app was drawing, idle gaps excluded
+    public double getFps() {
+        long elapsed = 0;
+        for (long interval : intervals) {
+            elapsed += interval;
+        }
+        return (elapsed > 0) ? intervals.size() * 1e9 / elapsed : 0;
+    }
+
+    // Present-to-present intervals (ns), idle gaps excluded
+    public List<Long> getFrameTimes() {
+        return new ArrayList<Long>(intervals);
+    }
+
+    // The longest present-to-present interval (ns), idle gaps excluded,
+    // or -1 if there was none
+    public long getWorstFrameTime() {
+        long worst = -1;
+        for (long interval : intervals) {
+            worst = Math.max(worst, interval);
+        }
+        return worst;
+    }
+
+    // Frames which missed their deadline by one or more content frames
+    public int getLateCount() {
+        classify();
+        return frames - onTime;
+    }
+
+    public void writeResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            writeResults(out, "");
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeResults(BufferedWriter out, String prefix) throws IOException {
+        classify();
+        out.write(String.format("%srefresh_period_start_ns %d\n", prefix, startPeriod));
+        out.write(String.format("%srefresh_period_end_ns %d\n", prefix, endPeriod));
+        out.write(String.format("%srefresh_period_changed %d\n", prefix, refreshPeriodChanged() ? 1 : 0));
+        out.write(String.format("%srefresh_period_switches %d\n", prefix, periodSwitches));
+        out.write(String.format("%scontent_period_ns %d\n", prefix, contentPeriod));
+        out.write(String.format("%sframes %d\n", prefix, frames));
+        out.write(String.format("%sfps %.2f\n", prefix, getFps()));
+        out.write(String.format("%son_time %d\n", prefix, onTime));
+        out.write(String.format("%sjanky %d\n", prefix, janky));
+        out.write(String.format("%sidle_gaps %d\n", prefix, idleGaps));
+        for (int vsyncs = 2; vsyncs <= MISSED_VSYNCS_MAX; vsyncs++) {
+            Integer count = missed.get(vsyncs);
+            String key = (vsyncs == MISSED_VSYNCS_MAX)
+                       ? String.format("missed_%dplus_vsyncs", vsyncs)
+                       : String.format("missed_%d_vsyncs", vsyncs);
+            out.write(String.format("%s%s %d\n", prefix, key, count == null ? 0 : count));
+        }
+    }
+
+    // Returns the refresh period from the first line of a capture, or 0
+    public static long readRefreshPeriod(File surfFlingerLog) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(surfFlingerLog));
+        try {
+            String line = reader.readLine();
+            if (line != null && line.trim().length() > 0) {
+                return Long.parseLong(line.trim());
+            }
+            return 0;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Returns {desired present, actual present} for every presented frame;
+    // for app layers the desired time is when the buffer was queued
+    public static List<long[]> readFrames(File surfFlingerLog, long notBefore) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(surfFlingerLog));
+        try {
+            return readFrames(reader, notBefore);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static List<long[]> readFrames(BufferedReader reader, long notBefore) throws IOException {
+        List<long[]> result = new ArrayList<long[]>();
+        String line = reader.readLine();  // refresh period
+        long lastReady = 0;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length != 3) {
+                continue;
+            }
+            long desired = Long.parseLong(fields[0]);
+            long actual = Long.parseLong(fields[1]);
+            long ready = Long.parseLong(fields[2]);
+            if (actual == 0 || actual == Long.MAX_VALUE || ready <= lastReady) {
+                continue;  // not yet presented, or a duplicate
+            }
+            lastReady = ready;
+            if (actual >= notBefore) {
+                result.add(new long[] {desired, actual});
+            }
+        }
+        return result;
+    }
+
+    private void classify() {
+        if (classified) {
+            return;
+        }
+        classified = true;
+        onTime = frames - intervals.size();  // first frame of each run
+        janky = 0;
+        missed.clear();
+        if (intervals.isEmpty()) {
+            contentPeriod = 0;
+            return;
+        }
+
+        // The content's cadence, snapped to whole refresh periods
+        List<Long> sorted = new ArrayList<Long>();
+        for (int i = 0; i < intervals.size(); i++) {
+            sorted.add(Math.max(Math.round(intervals.get(i) / (double) periods.get(i)), 1) * periods.get(i));
+        }
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(sorted.size() * CONTENT_CADENCE_PERCENTILE / 100.0) - 1;
+        contentPeriod = sorted.get(Math.max(index, 0));
+
+        for (int i = 0; i < intervals.size(); i++) {
+            long period = periods.get(i);
+            long vsyncs = Math.max(Math.round(intervals.get(i) / (double) period), 1);
+            long cadence = Math.max(Math.round(contentPeriod / (double) period), 1);
+            int framesLate = (int) Math.max(Math.round((vsyncs - cadence) / (double) cadence), 0);
+            if (framesLate == 0) {
+                onTime++;
+            } else if (framesLate == 1) {
+                janky++;
+            } else {
+                int bucket = Math.min(framesLate, MISSED_VSYNCS_MAX);
+                Integer count = missed.get(bucket);
+                missed.put(bucket, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    // Returns the refresh period in effect for interval, switching to
+    // another rate if the interval is one or two of its periods but does
+    // not fit the current one
+    private long trackPeriod(long interval) {
+        if (residual(interval, period) <= PERIOD_TOLERANCE) {
+            return period;
+        }
+        long best = 0;
+        double bestResidual = PERIOD_TOLERANCE;
+        for (long candidate : getCandidatePeriods()) {
+            long vsyncs = Math.round(interval / (double) candidate);
+            double candidateResidual = residual(interval, candidate);
+            if (vsyncs >= 1 && vsyncs <= 2 && candidateResidual < bestResidual) {
+                best = candidate;
+                bestResidual = candidateResidual;
+            }
+        }
+        if (best > 0) {
+            period = best;
+            periodSwitches++;
+        }
+        return period;
+    }
+
+    // Longest first, so that an interval that fits harmonics of several
+    // rates is taken to be a single period of the lowest
+    private List<Long> getCandidatePeriods() {
+        List<Long> candidates = new ArrayList<Long>();
+        candidates.add(startPeriod);
+        candidates.add(endPeriod);
+        for (int rate : COMMON_REFRESH_RATES) {
+            candidates.add(Math.round(1e9 / rate));
+        }
+        Collections.sort(candidates, Collections.reverseOrder());
+        return candidates;
+    }
+
+    private static double residual(long interval, long period) {
+        double vsyncs = interval / (double) period;
+        return Math.abs(vsyncs - Math.round(vsyncs));
+    }
+}
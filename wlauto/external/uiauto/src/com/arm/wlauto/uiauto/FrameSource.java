@@ -0,0 +1,44 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import java.io.File;
+
+/*
+ * A backend capable of capturing per-frame data for an app. Implementations
+ * are provided by UxPerfUiAutomation, which probes them in order of cost and
+ * uses the first one that yields data for the package under test.
+ */
+public interface FrameSource {
+
+    // Short name, used as the suffix of the log file the frames are written to
+    public String getName();
+
+    // Cheap static check, e.g. on the platform SDK level
+    public boolean isSupported();
+
+    // Returns true if this backend currently reports frame data for the app
+    public boolean probe();
+
+    // Discards any frames captured so far
+    public void reset();
+
+    // Writes the frames captured since the last reset to outFile
+    public void dump(File outFile);
+
+    // Stops capturing without writing anything, for an abandoned span
+    public void discard();
+}
@@ -0,0 +1,204 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import android.graphics.Rect;
+
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiObjectNotFoundException;
+import com.android.uiautomator.core.UiSelector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/*
+ * Records where navigation clicks landed so that later runs can tap the
+ * same coordinates directly instead of resolving the selector again.
+ *
+ * A click is identified by its selector, the workload method making it and
+ * how many times that method has already clicked it during the run. Each
+ * recording is of the view that was clicked: its package, class, text,
+ * description and bounds. A recording is only replayed once a view with
+ * exactly those properties is shown at the same place, otherwise the
+ * caller resolves the selector as usual and the recording is replaced.
+ * Views without text or a description, such as icon buttons, are matched
+ * on their other properties; null and empty values are both stored as an
+ * empty field.
+ */
+public class NavigationReplay {
+
+    public static class Target {
+        public String packageName;
+        public String className;
+        public String text;
+        public String description;
+        public Rect bounds;
+
+        public static Target of(UiObject view) throws UiObjectNotFoundException {
+            Target target = new Target();
+            target.packageName = emptyToNull(view.getPackageName());
+            target.className = emptyToNull(view.getClassName());
+            target.text = emptyToNull(view.getText());
+            target.description = emptyToNull(view.getContentDescription());
+            target.bounds = view.getVisibleBounds();
+            return target;
+        }
+
+        // Matches the recorded view, wherever it is. UiSelector never
+        // matches a null property, so only the properties the view had are
+        // included.
+        public UiSelector getSelector() {
+            UiSelector selector = new UiSelector();
+            if (packageName != null) {
+                selector = selector.packageName(packageName);
+            }
+            if (className != null) {
+                selector = selector.className(className);
+            }
+            if (text != null) {
+                selector = selector.text(text);
+            }
+            if (description != null) {
+                selector = selector.description(description);
+            }
+            return selector;
+        }
+
+        private static String emptyToNull(String value) {
+            return (value == null || value.length() == 0) ? null : value;
+        }
+    }
+
+    private File store;
+    private Map<String, Target> recordings = new TreeMap<String, Target>();
+    private Map<String, Integer> occurrences = new HashMap<String, Integer>();
+    private int replayed = 0;
+    private int recorded = 0;
+    private int mismatches = 0;
+
+    public NavigationReplay(File store) throws IOException {
+        this.store = store;
+        if (store.exists()) {
+            load();
+        }
+    }
+
+    // Returns the key for the next click on selector, to be passed to
+    // getReplay() and record()
+    public String nextKey(UiSelector selector) {
+        StackTraceElement callSite = OverheadAccounting.findCallSite();
+        String step = (callSite == null)
+                    ? "unknown" : callSite.getClassName() + "#" + callSite.getMethodName();
+        String key = step + " " + selector.toString();
+        Integer count = occurrences.get(key);
+        count = (count == null) ? 0 : count + 1;
+        occurrences.put(key, count);
+        return key + " " + count;
+    }
+
+    // Returns the view recorded for the click, or null if there is none
+    public Target getRecording(String key) {
+        return recordings.get(key);
+    }
+
+    // Called once the recorded view has been found where it was, and tapped
+    public void replayed() {
+        replayed++;
+    }
+
+    // Called when the recorded view is not shown, or has moved
+    public void mismatched() {
+        mismatches++;
+    }
+
+    public void record(String key, Target target) {
+        recordings.put(key, target);
+        recorded++;
+    }
+
+    public void save() throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(store));
+        try {
+            for (Entry<String, Target> entry : recordings.entrySet()) {
+                Target target = entry.getValue();
+                // Text and descriptions may contain tabs and newlines
+                out.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\n", entry.getKey(),
+                                        encode(target.packageName), encode(target.className),
+                                        encode(target.text), encode(target.description),
+                                        target.bounds.flattenToString()));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(String.format("clicks_replayed %d\n", replayed));
+            out.write(String.format("clicks_recorded %d\n", recorded));
+            out.write(String.format("fingerprint_mismatches %d\n", mismatches));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(store));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 6) {
+                    continue;
+                }
+                try {
+                    Target target = new Target();
+                    target.packageName = decode(fields[1]);
+                    target.className = decode(fields[2]);
+                    target.text = decode(fields[3]);
+                    target.description = decode(fields[4]);
+                    target.bounds = Rect.unflattenFromString(fields[5]);
+                    if (target.bounds != null) {
+                        recordings.put(fields[0], target);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Skip corrupt entries rather than losing the whole store
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String encode(String value) throws IOException {
+        return (value == null) ? "" : URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String decode(String field) throws IOException {
+        return (field.length() == 0) ? null : URLDecoder.decode(field, "UTF-8");
+    }
+}
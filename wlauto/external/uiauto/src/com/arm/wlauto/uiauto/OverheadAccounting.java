@@ -0,0 +1,164 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Accounts for the time an automation run spends on overheads such as
+ * sleeps, waiting for views, selector lookups and spawning dumpsys, broken
+ * down by category and by the workload method ("step") that incurred it.
+ *
+ * Sections nest: time spent in an inner section (e.g. a lookup made by
+ * clickUiObject()) is charged to the inner category only, so the
+ * categories add up to the total overhead. Only sections on the thread
+ * that created the accounting are recorded, helper threads are ignored.
+ *
+ * COMMAND is for shell commands that drive the app or device, such as
+ * "am start -W" launches and "am force-stop". It is reported, but is part
+ * of the scenario rather than overhead so is not included in overhead_ms.
+ */
+public class OverheadAccounting {
+
+    public enum Category { SLEEP, WAIT, LOOKUP, CLICK, DUMPSYS, COMMAND };
+
+    private static final String LIBRARY_PACKAGE = "com.arm.wlauto.uiauto.";
+
+    private static class Section {
+        Category category;
+        String step;
+        long startTime;
+        long childTime = 0;
+    }
+
+    private Thread owner = Thread.currentThread();
+    private long runStart = System.nanoTime();
+    private List<Section> active = new ArrayList<Section>();
+
+    // {total ns, count}
+    private Map<Category, long[]> totals = new EnumMap<Category, long[]>(Category.class);
+    private Map<String, long[]> steps = new HashMap<String, long[]>();
+
+    public void begin(Category category) {
+        if (Thread.currentThread() != owner) {
+            return;
+        }
+        Section section = new Section();
+        section.category = category;
+        section.step = active.isEmpty() ? findStep() : active.get(active.size() - 1).step;
+        section.startTime = System.nanoTime();
+        active.add(section);
+    }
+
+    public void end() {
+        if (Thread.currentThread() != owner || active.isEmpty()) {
+            return;
+        }
+        Section section = active.remove(active.size() - 1);
+        long elapsed = System.nanoTime() - section.startTime;
+        if (!active.isEmpty()) {
+            active.get(active.size() - 1).childTime += elapsed;
+        }
+
+        long exclusive = elapsed - section.childTime;
+        add(totals, section.category, exclusive);
+        add(steps, section.step + "_" + name(section.category), exclusive);
+    }
+
+    public void writeResults(File file) throws IOException {
+        long runDuration = System.nanoTime() - runStart;
+        long accounted = 0;
+
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(String.format("run_duration_ms %d\n", toMillis(runDuration)));
+            for (Category category : Category.values()) {
+                long[] total = totals.get(category);
+                long time = (total == null) ? 0 : total[0];
+                if (category != Category.COMMAND) {
+                    accounted += time;
+                }
+                out.write(String.format("%s_ms %d\n", name(category), toMillis(time)));
+                out.write(String.format("%s_count %d\n", name(category), total == null ? 0 : total[1]));
+            }
+            out.write(String.format("overhead_ms %d\n", toMillis(accounted)));
+            out.write(String.format("remaining_ms %d\n", toMillis(runDuration - accounted)));
+
+            // Most expensive steps first
+            List<Entry<String, long[]>> ranked = new ArrayList<Entry<String, long[]>>(steps.entrySet());
+            Collections.sort(ranked, new Comparator<Entry<String, long[]>>() {
+                public int compare(Entry<String, long[]> a, Entry<String, long[]> b) {
+                    return Long.valueOf(b.getValue()[0]).compareTo(a.getValue()[0]);
+                }
+            });
+            for (Entry<String, long[]> entry : ranked) {
+                out.write(String.format("step_%s_ms %d\n", entry.getKey(), toMillis(entry.getValue()[0])));
+                out.write(String.format("step_%s_count %d\n", entry.getKey(), entry.getValue()[1]));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static <K> void add(Map<K, long[]> map, K key, long time) {
+        long[] value = map.get(key);
+        if (value == null) {
+            value = new long[2];
+            map.put(key, value);
+        }
+        value[0] += time;
+        value[1]++;
+    }
+
+    private static String findStep() {
+        StackTraceElement callSite = findCallSite();
+        return (callSite == null) ? "unknown" : callSite.getMethodName();
+    }
+
+    // Returns the innermost frame of the workload itself, which lives in a
+    // sub-package of the library, or null if called from the library alone
+    static StackTraceElement findCallSite() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (className.startsWith(LIBRARY_PACKAGE)
+                    && className.indexOf('.', LIBRARY_PACKAGE.length()) >= 0) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static String name(Category category) {
+        return category.name().toLowerCase(Locale.US);
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,151 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import com.android.uiautomator.core.UiDevice;
+import com.android.uiautomator.core.UiSelector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Profiles how long each selector takes to resolve, keyed by selector and
+ * the workload line that looked it up, and writes a report ranked by total
+ * resolution time.
+ *
+ * UiAutomator does not expose how many nodes a lookup visited, so the
+ * first time a selector is resolved the size of the accessibility tree at
+ * that point is recorded instead; a "contains" match or one that is never
+ * found walks all of it. Dumping the tree is slow, so it is not done for
+ * lookups inside a measured span; the tree is counted at the selector's
+ * first lookup outside one, or reported as -1 if there is none.
+ */
+public class SelectorProfiler {
+
+    // dumpWindowHierarchy() writes under /data/local/tmp
+    private static final String HIERARCHY_DUMP = "selector_profiler.xml";
+    private static final File HIERARCHY_DIR = new File("/data/local/tmp");
+
+    private static class Profile {
+        String selector;
+        String callSite;
+        int count = 0;
+        int misses = 0;
+        long totalTime = 0;
+        long maxTime = 0;
+        int treeNodes = -1;
+        boolean treeCounted = false;
+    }
+
+    private UiDevice device;
+    private Map<String, Profile> profiles = new HashMap<String, Profile>();
+
+    public SelectorProfiler(UiDevice device) {
+        this.device = device;
+    }
+
+    public void record(UiSelector selector, long elapsedNanos, boolean found, boolean measuring) {
+        StackTraceElement element = OverheadAccounting.findCallSite();
+        String callSite = (element == null) ? "unknown" : element.toString();
+        String key = selector.toString() + "@" + callSite;
+
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new Profile();
+            profile.selector = selector.toString();
+            profile.callSite = callSite;
+            profiles.put(key, profile);
+        }
+        if (!profile.treeCounted && !measuring) {
+            profile.treeNodes = countTreeNodes();
+            profile.treeCounted = true;
+        }
+        profile.count++;
+        profile.misses += found ? 0 : 1;
+        profile.totalTime += elapsedNanos;
+        profile.maxTime = Math.max(profile.maxTime, elapsedNanos);
+    }
+
+    public void writeResults(File file) throws IOException {
+        List<Profile> ranked = new ArrayList<Profile>(profiles.values());
+        Collections.sort(ranked, new Comparator<Profile>() {
+            public int compare(Profile a, Profile b) {
+                return Long.valueOf(b.totalTime).compareTo(a.totalTime);
+            }
+        });
+
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            int rank = 1;
+            for (Profile profile : ranked) {
+                String prefix = "selector_" + rank++;
+                out.write(String.format("%s_total_ms %d\n", prefix, toMillis(profile.totalTime)));
+                out.write(String.format("%s_max_ms %d\n", prefix, toMillis(profile.maxTime)));
+                out.write(String.format("%s_avg_ms %d\n", prefix, toMillis(profile.totalTime / profile.count)));
+                out.write(String.format("%s_count %d\n", prefix, profile.count));
+                out.write(String.format("%s_misses %d\n", prefix, profile.misses));
+                out.write(String.format("%s_tree_nodes %d\n", prefix, profile.treeNodes));
+                out.write(String.format("%s_call_site %s\n", prefix, profile.callSite));
+                out.write(String.format("%s_selector %s\n", prefix, profile.selector));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private int countTreeNodes() {
+        File dump = new File(HIERARCHY_DIR, HIERARCHY_DUMP);
+        BufferedReader reader = null;
+        int nodes = 0;
+        try {
+            device.dumpWindowHierarchy(HIERARCHY_DUMP);
+            reader = new BufferedReader(new FileReader(dump));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (int i = line.indexOf("<node"); i >= 0; i = line.indexOf("<node", i + 1)) {
+                    nodes++;
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            dump.delete();
+        }
+        return nodes;
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
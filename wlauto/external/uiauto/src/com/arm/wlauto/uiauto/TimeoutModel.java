@@ -0,0 +1,183 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import com.android.uiautomator.core.UiSelector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/*
+ * Learns how long each lookup normally takes from previous runs and
+ * derives a tighter timeout for it, so a step that is never going to
+ * succeed fails after a few seconds rather than after the worst case
+ * timeout hard-coded in the workload.
+ *
+ * The recent wait durations of every step (selector and the workload
+ * method looking it up) are kept in a small store, which the workload
+ * copies to the device before each run and back to the host after it.
+ * Once a step has enough history its timeout becomes the 99th percentile
+ * of those durations times a safety factor, but no less than
+ * MIN_TIMEOUT_MILLIS and never more than the timeout the workload asked
+ * for. Until a step has HISTORY_SIZE samples its 99th percentile is the
+ * slowest wait seen, so the floor has to absorb anything slower than
+ * that; steps slower than their learned envelope, and those abandoned at
+ * the learned timeout, are reported.
+ */
+public class TimeoutModel {
+
+    public static final int HISTORY_SIZE = 100;
+    public static final int MIN_SAMPLES = 20;
+    public static final double SAFETY_FACTOR = 3.0;
+    public static final long MIN_TIMEOUT_MILLIS = 5000;
+
+    private File store;
+    private Map<String, List<Long>> history = new TreeMap<String, List<Long>>();
+    private List<String> events = new ArrayList<String>();
+    private int lookups = 0;
+    private int learnedLookups = 0;
+    private int exceeded = 0;
+    private int timedOut = 0;
+
+    public TimeoutModel(File store) throws IOException {
+        this.store = store;
+        if (store.exists()) {
+            load();
+        }
+    }
+
+    public static String getKey(UiSelector selector) {
+        StackTraceElement callSite = OverheadAccounting.findCallSite();
+        String step = (callSite == null)
+                    ? "unknown" : callSite.getClassName() + "#" + callSite.getMethodName();
+        return step + " " + selector.toString();
+    }
+
+    public long getTimeout(String key, long defaultTimeout) {
+        long envelope = getEnvelope(key);
+        if (envelope < 0) {
+            return defaultTimeout;
+        }
+        long learned = Math.max((long) (envelope * SAFETY_FACTOR), MIN_TIMEOUT_MILLIS);
+        return Math.min(learned, defaultTimeout);
+    }
+
+    public void record(String key, long defaultTimeout, long timeout, long elapsed, boolean found) {
+        long envelope = getEnvelope(key);
+        lookups++;
+        if (timeout < defaultTimeout) {
+            learnedLookups++;
+        }
+
+        if (found) {
+            if (envelope >= 0 && elapsed > envelope) {
+                exceeded++;
+                events.add(String.format("envelope_exceeded %d %d %s", elapsed, envelope, key));
+            }
+            List<Long> samples = history.get(key);
+            if (samples == null) {
+                samples = new ArrayList<Long>();
+                history.put(key, samples);
+            }
+            samples.add(elapsed);
+            if (samples.size() > HISTORY_SIZE) {
+                samples.remove(0);
+            }
+        } else if (timeout < defaultTimeout) {
+            timedOut++;
+            events.add(String.format("timed_out_early %d %d %s", timeout, defaultTimeout, key));
+        }
+    }
+
+    public void save() throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(store));
+        try {
+            for (Entry<String, List<Long>> entry : history.entrySet()) {
+                StringBuilder samples = new StringBuilder();
+                for (Long sample : entry.getValue()) {
+                    if (samples.length() > 0) {
+                        samples.append(',');
+                    }
+                    samples.append(sample);
+                }
+                out.write(entry.getKey() + "\t" + samples + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(String.format("lookups %d\n", lookups));
+            out.write(String.format("learned_lookups %d\n", learnedLookups));
+            out.write(String.format("envelope_exceeded %d\n", exceeded));
+            out.write(String.format("timed_out_early %d\n", timedOut));
+            for (String event : events) {
+                out.write(event + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // 99th percentile wait duration, or -1 if there is not enough history
+    private long getEnvelope(String key) {
+        List<Long> samples = history.get(key);
+        if (samples == null || samples.size() < MIN_SAMPLES) {
+            return -1;
+        }
+        List<Long> sorted = new ArrayList<Long>(samples);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(sorted.size() * 0.99) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(store));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 2) {
+                    continue;
+                }
+                List<Long> samples = new ArrayList<Long>();
+                for (String sample : fields[1].split(",")) {
+                    try {
+                        samples.add(Long.parseLong(sample));
+                    } catch (NumberFormatException e) {
+                        // Skip corrupt entries rather than losing the whole store
+                    }
+                }
+                history.put(fields[0], samples);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
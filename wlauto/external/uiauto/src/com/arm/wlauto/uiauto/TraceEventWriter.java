@@ -0,0 +1,128 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Streaming writer for the Chrome trace-event JSON format, which can be
+ * loaded by chrome://tracing and the Perfetto UI. Events are written out as
+ * they happen so memory use is constant regardless of the run length.
+ *
+ * Timestamps are taken from System.nanoTime() (CLOCK_MONOTONIC) so that
+ * the exported timeline lines up with ftrace/systrace captures and with
+ * SurfaceFlinger frame timestamps.
+ */
+public class TraceEventWriter {
+
+    private Logger logger = Logger.getLogger(TraceEventWriter.class.getName());
+
+    private BufferedWriter out;
+    private int pid;
+    private boolean firstEvent = true;
+
+    public TraceEventWriter(File file, String processName) throws IOException {
+        this.out = new BufferedWriter(new FileWriter(file));
+        this.pid = Process.myPid();
+        out.write("{\"traceEvents\":[\n");
+        write(String.format("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":%d,\"args\":{\"name\":\"%s\"}}",
+                            pid, escape(processName)));
+    }
+
+    public static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    // Spans opened on the same thread nest within each other in the viewer
+    public void beginSpan(String name) {
+        write(String.format("{\"name\":\"%s\",\"cat\":\"span\",\"ph\":\"B\",\"ts\":%d,\"pid\":%d,\"tid\":%d}",
+                            escape(name), now(), pid, Process.myTid()));
+    }
+
+    public void endSpan(String name) {
+        write(String.format("{\"name\":\"%s\",\"cat\":\"span\",\"ph\":\"E\",\"ts\":%d,\"pid\":%d,\"tid\":%d}",
+                            escape(name), now(), pid, Process.myTid()));
+    }
+
+    public void counter(String name, long timestamp, long value) {
+        write(String.format("{\"name\":\"%s\",\"cat\":\"sampler\",\"ph\":\"C\",\"ts\":%d,\"pid\":%d,\"args\":{\"value\":%d}}",
+                            escape(name), timestamp, pid, value));
+    }
+
+    public void instant(String name) {
+        write(String.format("{\"name\":\"%s\",\"ph\":\"i\",\"s\":\"p\",\"ts\":%d,\"pid\":%d,\"tid\":%d}",
+                            escape(name), now(), pid, Process.myTid()));
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.write("\n]}\n");
+            out.close();
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Unable to close trace event file", exception);
+        }
+        out = null;
+    }
+
+    private synchronized void write(String event) {
+        if (out == null) {
+            return;
+        }
+        try {
+            if (!firstEvent) {
+                out.write(",\n");
+            }
+            out.write(event);
+            firstEvent = false;
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Unable to write trace event, closing trace event file", exception);
+            close();
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Writes atrace style events to the ftrace trace_marker so that measured
+ * spans show up in traces collected by the trace_cmd and systrace
+ * instruments. Async begin/end events ("S|pid|name|cookie" and
+ * "F|pid|name|cookie") are used as spans may begin and end on different
+ * threads and are allowed to overlap.
+ */
+public class TraceMarker {
+
+    private static Logger logger = Logger.getLogger(TraceMarker.class.getName());
+
+    private static final String[] TRACE_MARKER_PATHS = {
+        "/sys/kernel/debug/tracing/trace_marker",
+        "/sys/kernel/tracing/trace_marker",
+    };
+
+    private static FileOutputStream marker = null;
+    private static boolean disabled = false;
+
+    public static void beginAsync(String tag) {
+        write(String.format("S|%d|%s|%d", Process.myPid(), sanitise(tag), cookie(tag)));
+    }
+
+    public static void endAsync(String tag) {
+        write(String.format("F|%d|%s|%d", Process.myPid(), sanitise(tag), cookie(tag)));
+    }
+
+    public static void counter(String name, long value) {
+        write(String.format("C|%d|%s|%d", Process.myPid(), sanitise(name), value));
+    }
+
+    public static synchronized boolean isAvailable() {
+        return open();
+    }
+
+    public static synchronized void close() {
+        if (marker != null) {
+            try {
+                marker.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            marker = null;
+        }
+    }
+
+    private static synchronized void write(String event) {
+        if (!open()) {
+            return;
+        }
+
+        // Each event must reach the kernel as a single write() call
+        try {
+            marker.write(event.getBytes());
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Unable to write to trace_marker, disabling markers", exception);
+            close();
+            disabled = true;
+        }
+    }
+
+    private static boolean open() {
+        if (marker != null) {
+            return true;
+        }
+        if (disabled) {
+            return false;
+        }
+
+        for (String path : TRACE_MARKER_PATHS) {
+            File file = new File(path);
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                marker = new FileOutputStream(file);
+                return true;
+            } catch (IOException exception) {
+                logger.log(Level.FINE, "Unable to open " + path, exception);
+            }
+        }
+
+        // Don't keep probing sysfs for every span on devices without tracefs access
+        logger.log(Level.INFO, "No writable trace_marker found, span markers disabled");
+        disabled = true;
+        return false;
+    }
+
+    // Tags are used as both the event name and (hashed) the cookie, so the
+    // begin and end of a span always pair up in the trace viewer
+    private static int cookie(String tag) {
+        return tag.hashCode() & Integer.MAX_VALUE;
+    }
+
+    private static String sanitise(String tag) {
+        return tag.replace('|', '_').replace('\n', '_');
+    }
+}
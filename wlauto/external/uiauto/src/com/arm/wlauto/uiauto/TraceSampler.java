@@ -0,0 +1,155 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Background thread that periodically samples CPU frequency, available
+ * memory and thermal zone temperatures and emits them as counter series
+ * through a TraceEventWriter.
+ */
+public class TraceSampler extends Thread {
+
+    private TraceEventWriter writer;
+    private long intervalMillis;
+    private volatile boolean running = true;
+
+    private List<String> names = new ArrayList<String>();
+    private List<File> files = new ArrayList<File>();
+
+    public TraceSampler(TraceEventWriter writer, long intervalMillis) {
+        super("TraceSampler");
+        setDaemon(true);
+        this.writer = writer;
+        this.intervalMillis = intervalMillis;
+
+        for (int cpu = 0; ; cpu++) {
+            File cpuDir = new File("/sys/devices/system/cpu/cpu" + cpu);
+            if (!cpuDir.exists()) {
+                break;
+            }
+            addSource("cpu" + cpu + "_freq_khz", new File(cpuDir, "cpufreq/scaling_cur_freq"));
+        }
+
+        for (int zone = 0; ; zone++) {
+            File zoneDir = new File("/sys/class/thermal/thermal_zone" + zone);
+            if (!zoneDir.exists()) {
+                break;
+            }
+            addSource("thermal_zone" + zone + "_temp", new File(zoneDir, "temp"));
+        }
+    }
+
+    public void run() {
+        while (running) {
+            sample();
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    public void finish() {
+        running = false;
+        interrupt();
+        try {
+            join(intervalMillis * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void addSource(String name, File file) {
+        if (file.canRead()) {
+            names.add(name);
+            files.add(file);
+        }
+    }
+
+    private void sample() {
+        long timestamp = TraceEventWriter.now();
+        for (int i = 0; i < files.size(); i++) {
+            String value = readFirstLine(files.get(i));
+            if (value != null) {
+                try {
+                    writer.counter(names.get(i), timestamp, Long.parseLong(value.trim()));
+                } catch (NumberFormatException e) {
+                    // Offline CPUs and some thermal drivers report non-numeric values
+                }
+            }
+        }
+
+        long available = readMemAvailable();
+        if (available >= 0) {
+            writer.counter("mem_available_kb", timestamp, available);
+        }
+    }
+
+    // MemAvailable is only present from Linux 3.14 so fall back to MemFree
+    private long readMemAvailable() {
+        BufferedReader reader = null;
+        long memFree = -1;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/meminfo"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2) {
+                    continue;
+                }
+                if (fields[0].equals("MemAvailable:")) {
+                    return Long.parseLong(fields[1]);
+                } else if (fields[0].equals("MemFree:")) {
+                    memFree = Long.parseLong(fields[1]);
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            closeQuietly(reader);
+        }
+        return memFree;
+    }
+
+    private static String readFirstLine(File file) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            return reader.readLine();
+        } catch (Exception e) {
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly(BufferedReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
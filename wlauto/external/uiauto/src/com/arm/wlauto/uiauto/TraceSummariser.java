@@ -0,0 +1,269 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Streaming parser for ftrace text output (as produced by atrace) that
+ * reduces a trace to a handful of per-span figures for a single app:
+ *
+ *  - scheduler latency of the main thread (sched_wakeup to sched_switch)
+ *  - the longest atrace slices on the app's RenderThread
+ *  - binder transactions made by the app and the time spent blocked on them
+ *
+ * Lines are consumed one at a time and only aggregates are kept, so memory
+ * use does not depend on the size of the trace.
+ */
+public class TraceSummariser {
+
+    public static final int TOP_SLICE_COUNT = 5;
+
+    private static final Pattern EVENT_PATTERN =
+        Pattern.compile("^\\s*(.*?)-(\\d+)\\s+(?:\\(\\s*[\\d-]+\\)\\s+)?\\[\\d+\\]\\s+"
+                      + "(?:\\S{4,5}\\s+)?(\\d+)\\.(\\d+):\\s+(\\w+):\\s+(.*)$");
+    private static final Pattern WAKEUP_PID_PATTERN = Pattern.compile("\\bpid=(\\d+)");
+    private static final Pattern SWITCH_NEXT_PID_PATTERN = Pattern.compile("next_pid=(\\d+)");
+    private static final Pattern BINDER_REPLY_PATTERN = Pattern.compile("reply=(\\d+)");
+    private static final Pattern BINDER_FLAGS_PATTERN = Pattern.compile("flags=0x([0-9a-fA-F]+)");
+
+    private static final String RENDER_THREAD = "RenderThread";
+    private static final int TF_ONE_WAY = 0x01;
+
+    public static class Slice {
+        public final String name;
+        public final long duration;
+
+        public Slice(String name, long duration) {
+            this.name = name;
+            this.duration = duration;
+        }
+    }
+
+    private int mainTid;
+    private Set<Integer> appTids;
+    private Set<Integer> renderThreadTids = new HashSet<Integer>();
+
+    private long pendingWakeup = -1;
+    private long schedLatencyCount = 0;
+    private long schedLatencyTotal = 0;
+    private long schedLatencyMax = 0;
+
+    private Map<Integer, Deque<Long>> sliceStarts = new HashMap<Integer, Deque<Long>>();
+    private Map<Integer, Deque<String>> sliceNames = new HashMap<Integer, Deque<String>>();
+    private PriorityQueue<Slice> longestSlices =
+        new PriorityQueue<Slice>(TOP_SLICE_COUNT + 1, new Comparator<Slice>() {
+            public int compare(Slice a, Slice b) {
+                return a.duration < b.duration ? -1 : (a.duration > b.duration ? 1 : 0);
+            }
+        });
+
+    private Map<Integer, Long> binderStarts = new HashMap<Integer, Long>();
+    private long binderCalls = 0;
+    private long binderBlockedTotal = 0;
+    private long binderBlockedMax = 0;
+
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+
+    // appTids should contain every thread of the app, including the main
+    // thread whose tid equals the process id.
+    public TraceSummariser(int pid, Set<Integer> appTids) {
+        this.mainTid = pid;
+        this.appTids = new HashSet<Integer>(appTids);
+        this.appTids.add(pid);
+    }
+
+    public void parseLine(String line) {
+        Matcher matcher = EVENT_PATTERN.matcher(line);
+        if (!matcher.matches()) {
+            return;
+        }
+
+        String task = matcher.group(1);
+        int tid = Integer.parseInt(matcher.group(2));
+        long timestamp = toMicros(matcher.group(3), matcher.group(4));
+        String event = matcher.group(5);
+        String details = matcher.group(6);
+
+        if (firstTimestamp < 0) {
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+
+        if (RENDER_THREAD.equals(task) && appTids.contains(tid)) {
+            renderThreadTids.add(tid);
+        }
+
+        if ("sched_wakeup".equals(event) || "sched_waking".equals(event)) {
+            parseWakeup(timestamp, details);
+        } else if ("sched_switch".equals(event)) {
+            parseSwitch(timestamp, details);
+        } else if ("tracing_mark_write".equals(event)) {
+            parseMarker(tid, timestamp, details);
+        } else if ("binder_transaction".equals(event)) {
+            parseBinderTransaction(tid, timestamp, details);
+        } else if ("binder_transaction_received".equals(event)) {
+            parseBinderReceived(tid, timestamp);
+        }
+    }
+
+    public void writeResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            long average = (schedLatencyCount == 0) ? 0 : schedLatencyTotal / schedLatencyCount;
+            long traceDuration = (firstTimestamp < 0) ? 0 : lastTimestamp - firstTimestamp;
+
+            out.write(String.format("trace_duration_us %d\n", traceDuration));
+            out.write(String.format("main_thread_wakeups %d\n", schedLatencyCount));
+            out.write(String.format("main_thread_sched_latency_avg_us %d\n", average));
+            out.write(String.format("main_thread_sched_latency_max_us %d\n", schedLatencyMax));
+            out.write(String.format("binder_calls %d\n", binderCalls));
+            out.write(String.format("binder_blocked_total_us %d\n", binderBlockedTotal));
+            out.write(String.format("binder_blocked_max_us %d\n", binderBlockedMax));
+
+            List<Slice> slices = getLongestSlices();
+            for (int i = 0; i < slices.size(); i++) {
+                Slice slice = slices.get(i);
+                out.write(String.format("render_thread_slice_%d_us %d %s\n",
+                                        i + 1, slice.duration, slice.name));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public List<Slice> getLongestSlices() {
+        List<Slice> slices = new ArrayList<Slice>(longestSlices);
+        Collections.sort(slices, Collections.reverseOrder(longestSlices.comparator()));
+        return slices;
+    }
+
+    public long getSchedLatencyMax() {
+        return schedLatencyMax;
+    }
+
+    public long getBinderCalls() {
+        return binderCalls;
+    }
+
+    private void parseWakeup(long timestamp, String details) {
+        Matcher matcher = WAKEUP_PID_PATTERN.matcher(details);
+        if (matcher.find() && Integer.parseInt(matcher.group(1)) == mainTid) {
+            // Keep the earliest of sched_waking/sched_wakeup for the same wakeup
+            if (pendingWakeup < 0) {
+                pendingWakeup = timestamp;
+            }
+        }
+    }
+
+    private void parseSwitch(long timestamp, String details) {
+        Matcher matcher = SWITCH_NEXT_PID_PATTERN.matcher(details);
+        if (matcher.find() && Integer.parseInt(matcher.group(1)) == mainTid && pendingWakeup >= 0) {
+            long latency = timestamp - pendingWakeup;
+            schedLatencyCount++;
+            schedLatencyTotal += latency;
+            schedLatencyMax = Math.max(schedLatencyMax, latency);
+            pendingWakeup = -1;
+        }
+    }
+
+    private void parseMarker(int tid, long timestamp, String details) {
+        if (!renderThreadTids.contains(tid)) {
+            return;
+        }
+
+        if (details.startsWith("B|")) {
+            String[] fields = details.split("\\|", 3);
+            String name = (fields.length > 2) ? fields[2].trim() : "";
+            getDeque(sliceStarts, tid).push(timestamp);
+            getDeque(sliceNames, tid).push(name);
+        } else if (details.startsWith("E")) {
+            Deque<Long> starts = getDeque(sliceStarts, tid);
+            Deque<String> names = getDeque(sliceNames, tid);
+            if (starts.isEmpty()) {
+                return;  // slice began before capture started
+            }
+            addSlice(new Slice(names.pop(), timestamp - starts.pop()));
+        }
+    }
+
+    private void parseBinderTransaction(int tid, long timestamp, String details) {
+        if (!appTids.contains(tid)) {
+            return;
+        }
+
+        Matcher reply = BINDER_REPLY_PATTERN.matcher(details);
+        if (reply.find() && !"0".equals(reply.group(1))) {
+            return;  // replies sent by the app to incoming calls
+        }
+
+        binderCalls++;
+
+        Matcher flags = BINDER_FLAGS_PATTERN.matcher(details);
+        boolean oneWay = flags.find() && (Integer.parseInt(flags.group(1), 16) & TF_ONE_WAY) != 0;
+        if (!oneWay) {
+            binderStarts.put(tid, timestamp);
+        }
+    }
+
+    private void parseBinderReceived(int tid, long timestamp) {
+        Long start = binderStarts.remove(tid);
+        if (start != null) {
+            long blocked = timestamp - start;
+            binderBlockedTotal += blocked;
+            binderBlockedMax = Math.max(binderBlockedMax, blocked);
+        }
+    }
+
+    private void addSlice(Slice slice) {
+        longestSlices.add(slice);
+        if (longestSlices.size() > TOP_SLICE_COUNT) {
+            longestSlices.poll();
+        }
+    }
+
+    private static <T> Deque<T> getDeque(Map<Integer, Deque<T>> map, int tid) {
+        Deque<T> deque = map.get(tid);
+        if (deque == null) {
+            deque = new ArrayDeque<T>();
+            map.put(tid, deque);
+        }
+        return deque;
+    }
+
+    private static long toMicros(String seconds, String fraction) {
+        // ftrace normally prints microseconds but be tolerant of other precisions
+        String micros = (fraction + "000000").substring(0, 6);
+        return Long.parseLong(seconds) * 1000000L + Long.parseLong(micros);
+    }
+}
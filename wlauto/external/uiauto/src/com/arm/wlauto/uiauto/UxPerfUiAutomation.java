@@ -15,63 +15,1548 @@
 
 package com.arm.wlauto.uiauto;
 
+import android.content.res.Resources;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import android.util.Pair;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
 
 import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiSelector;
 
+import com.arm.wlauto.uiauto.OverheadAccounting.Category;
+
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+
+public class UxPerfUiAutomation extends BaseUiAutomation {
+
+    private Logger logger = Logger.getLogger(UxPerfUiAutomation.class.getName());
+
+    public enum GestureType { UIDEVICE_SWIPE, UIOBJECT_SWIPE, PINCH };
+
+    public static final String TRACE_EXPORT_FILE = "trace_events.json";
+    public static final long TRACE_EXPORT_INTERVAL_DEFAULT = 250;
+
+    private FrameSource selectedFrameSource = null;
+    private boolean frameSourceSelected = false;
+    private TraceEventWriter traceExport = null;
+    private TraceSampler traceSampler = null;
+    private Map<String, List<Long>> keyLatencies = new LinkedHashMap<String, List<Long>>();
+    private Map<String, Integer> keysMissed = new LinkedHashMap<String, Integer>();
+    private Map<String, KeyboardTransition> keyboardTransitions = new LinkedHashMap<String, KeyboardTransition>();
+    private LinkedList<SurfaceLogger> openLoggers = new LinkedList<SurfaceLogger>();
+
+    public class SurfaceLogger {
+
+        private Bundle parameters;
+        private String testTag;
+        private String gfxInfologName;
+        private String surfFlingerlogName;
+        private String frameStatslogName;
+        private long refreshPeriod;
+        private FrameSource frameSource;
+        private MultiLayerCapture multiLayerCapture;
+        private SpanTrace spanTrace;
+        private Timer result;
+
+        public SurfaceLogger(String testTag, Bundle parameters) {
+            this.parameters = parameters;
+            this.testTag = testTag;
+            this.gfxInfologName = String.format(testTag + "_gfxInfo.log");
+            this.surfFlingerlogName = String.format(testTag + "_surfFlinger.log");
+            this.frameStatslogName = String.format(testTag + "_frameStats.log");
+            this.spanTrace = new SpanTrace(testTag, parameters);
+            this.result = new Timer();
+            if (Boolean.parseBoolean(parameters.getString("dumpsys_enabled"))
+                    && Boolean.parseBoolean(parameters.getString("multi_layer_enabled"))) {
+                this.multiLayerCapture = new MultiLayerCapture(parameters.getString("package"),
+                                                               new File(parameters.getString("output_dir")));
+            }
+        }
+
+        public void start() {
+            frameSource = getFrameSource(parameters);
+            if (frameSource != null) {
+                frameSource.reset();
+            } else {
+                startDumpsysGfxInfo(parameters);
+                startDumpsysSurfaceFlinger(parameters);
+            }
+            if (Boolean.parseBoolean(parameters.getString("dumpsys_enabled"))) {
+                refreshPeriod = getRefreshPeriod();
+            }
+            if (multiLayerCapture != null) {
+                multiLayerCapture.start();
+            }
+            spanTrace.start();
+            TraceMarker.beginAsync(testTag);
+            TraceEventWriter traceEvents = getTraceExport(parameters);
+            if (traceEvents != null) {
+                traceEvents.beginSpan(testTag);
+            }
+            beginMeasuredSpan(testTag);
+            openLoggers.push(this);
+            result.start();
+        }
+
+        public void stop() throws Exception {
+            result.end();
+            openLoggers.remove(this);
+            endMeasuredSpan();
+            TraceEventWriter traceEvents = getTraceExport(parameters);
+            if (traceEvents != null) {
+                traceEvents.endSpan(testTag);
+            }
+            TraceMarker.endAsync(testTag);
+            spanTrace.stop();
+            File outputDir = new File(parameters.getString("output_dir"));
+            if (frameSource != null) {
+                frameSource.dump(new File(outputDir, testTag + "_" + frameSource.getName() + ".log"));
+            } else {
+                stopDumpsysSurfaceFlinger(parameters, surfFlingerlogName);
+                stopDumpsysGfxInfo(parameters, gfxInfologName);
+            }
+            if (multiLayerCapture != null) {
+                multiLayerCapture.stop(testTag);
+            }
+            File surfFlingerLog = new File(outputDir, surfFlingerlogName);
+            if (Boolean.parseBoolean(parameters.getString("dumpsys_enabled")) && surfFlingerLog.exists()) {
+                classifyFrames(surfFlingerLog, refreshPeriod, new File(outputDir, frameStatslogName));
+                if (traceEvents != null) {
+                    exportFrameTimes(traceEvents, surfFlingerLog);
+                }
+            }
+        }
+
+        public Timer result() {
+            return result;
+        }
+
+        // Closes the span without writing any results, stopping the
+        // captures that would otherwise keep running
+        public void abort() {
+            openLoggers.remove(this);
+            endMeasuredSpan();
+            TraceEventWriter traceEvents = getTraceExport(parameters);
+            if (traceEvents != null) {
+                traceEvents.endSpan(testTag);
+            }
+            TraceMarker.endAsync(testTag);
+            spanTrace.abort();
+            if (frameSource != null) {
+                frameSource.discard();
+            }
+        }
+    }
+
+    /*
+     * Captures an atrace/ftrace segment for the lifetime of a single span
+     * and reduces it on the device to a summary (see TraceSummariser) which
+     * is written to <testTag>_traceSummary.log. Controlled by the following
+     * parameters:
+     *
+     *  span_trace_enabled     - capture is only carried out if "true"
+     *  span_trace_categories  - comma separated atrace categories
+     *                           (default: sched,gfx,view,binder_driver)
+     *  span_trace_buffer_kb   - per-CPU trace buffer size (default: 8192)
+     *  span_trace_keep_raw    - if "true" the raw trace is also written to
+     *                           <testTag>_atrace.log
+     */
+    public class SpanTrace {
+
+        public static final String DEFAULT_CATEGORIES = "sched,gfx,view,binder_driver";
+        public static final String DEFAULT_BUFFER_KB = "8192";
+
+        private Bundle parameters;
+        private String testTag;
+        private boolean enabled;
+        private boolean keepRaw;
+        private boolean started = false;
+
+        public SpanTrace(String testTag, Bundle parameters) {
+            this.parameters = parameters;
+            this.testTag = testTag;
+            this.enabled = Boolean.parseBoolean(parameters.getString("span_trace_enabled"));
+            this.keepRaw = Boolean.parseBoolean(parameters.getString("span_trace_keep_raw"));
+        }
+
+        public void start() {
+            if (!enabled) {
+                return;
+            }
+
+            String categories = parameters.getString("span_trace_categories");
+            String bufferKb = parameters.getString("span_trace_buffer_kb");
+
+            List<String> command = new ArrayList<String>();
+            command.add("atrace");
+            command.add("--async_start");
+            command.add("-b");
+            command.add(bufferKb != null ? bufferKb : DEFAULT_BUFFER_KB);
+            command.add("-a");
+            command.add(parameters.getString("package"));
+            command.addAll(Arrays.asList((categories != null ? categories : DEFAULT_CATEGORIES).split(",")));
+
+            Pair<Integer, String> result = executeCommand(command);
+            started = (result.first == 0);
+            if (!started) {
+                logger.log(Level.WARNING, "Unable to start span trace for " + testTag);
+            }
+        }
+
+        public void stop() throws Exception {
+            if (!started) {
+                return;
+            }
+            started = false;
+
+            String appPackage = parameters.getString("package");
+            File outputDir = new File(parameters.getString("output_dir"));
+            int pid = getPid(appPackage);
+            TraceSummariser summariser = new TraceSummariser(pid, getThreadIds(pid));
+
+            BufferedReader bufferedReader = null;
+            BufferedWriter rawWriter = null;
+            try {
+                ProcessBuilder processBuilder = new ProcessBuilder();
+                processBuilder.command(Arrays.asList("atrace", "--async_stop"));
+                Process process = processBuilder.start();
+                bufferedReader = new BufferedReader(
+                                 new InputStreamReader(process.getInputStream()));
+                if (keepRaw) {
+                    rawWriter = new BufferedWriter(
+                                new FileWriter(new File(outputDir, testTag + "_atrace.log")));
+                }
+
+                // Stream the trace through the summariser rather than holding it in memory
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    summariser.parseLine(line);
+                    if (rawWriter != null) {
+                        rawWriter.write(line);
+                        rawWriter.newLine();
+                    }
+                }
+                process.waitFor();
+            } finally {
+                if (rawWriter != null) {
+                    rawWriter.close();
+                }
+                if (bufferedReader != null) {
+                    bufferedReader.close();
+                }
+            }
+
+            summariser.writeResults(new File(outputDir, testTag + "_traceSummary.log"));
+        }
+
+        public void abort() {
+            if (!started) {
+                return;
+            }
+            started = false;
+            executeCommand(Arrays.asList("sh", "-c", "atrace --async_stop > /dev/null"));
+        }
+    }
+
+    /*
+     * Frame backends, in order of increasing cost. Each one writes its
+     * frames to <testTag>_<name>.log in the output directory.
+     */
+    public class SurfaceFlingerFrameSource implements FrameSource {
+
+        private String appPackage;
+
+        public SurfaceFlingerFrameSource(String appPackage) {
+            this.appPackage = appPackage;
+        }
+
+        public String getName() {
+            return "surfFlinger";
+        }
+
+        public boolean isSupported() {
+            return true;
+        }
+
+        public boolean probe() {
+            // Frame history is kept between clears, so a layer that has drawn
+            // anything at all should report some presented frames
+            String packageView = getSurfaceFlingerView(appPackage);
+            if (packageView.isEmpty()) {
+                return false;
+            }
+            Pair<Integer, String> result = executeCommand(
+                    Arrays.asList("dumpsys", "SurfaceFlinger", "--latency", packageView), true);
+            for (String line : result.second.split("\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 3 && !fields[1].equals("0")
+                        && !fields[1].equals(String.valueOf(Long.MAX_VALUE))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void reset() {
+            initDumpsysSurfaceFlinger(appPackage);
+        }
+
+        public void dump(File outFile) {
+            exitDumpsysSurfaceFlinger(appPackage, outFile);
+        }
+
+        public void discard() {
+        }
+    }
+
+    public class GfxInfoFrameSource implements FrameSource {
+
+        private String appPackage;
+
+        public GfxInfoFrameSource(String appPackage) {
+            this.appPackage = appPackage;
+        }
+
+        public String getName() {
+            return "gfxInfo";
+        }
+
+        public boolean isSupported() {
+            return Build.VERSION.SDK_INT >= 23;
+        }
+
+        public boolean probe() {
+            Pair<Integer, String> result = executeCommand(
+                    Arrays.asList("dumpsys", "gfxinfo", appPackage, "framestats"), true);
+            boolean inProfileData = false;
+            for (String line : result.second.split("\n")) {
+                if (line.startsWith("---PROFILEDATA---")) {
+                    inProfileData = !inProfileData;
+                } else if (inProfileData && line.length() > 0 && Character.isDigit(line.charAt(0))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void reset() {
+            executeCommand(Arrays.asList("dumpsys", "gfxinfo", appPackage, "reset"));
+        }
+
+        public void dump(File outFile) {
+            exitDumpsys(Arrays.asList("dumpsys", "gfxinfo", appPackage, "framestats"), outFile);
+        }
+
+        public void discard() {
+        }
+    }
+
+    public static final long TIMESTATS_PROBE_MILLIS = 1000;
+    public static final long TIMESTATS_PROBE_POLL_MILLIS = 250;
+
+    public class TimeStatsFrameSource implements FrameSource {
+
+        private String appPackage;
+
+        public TimeStatsFrameSource(String appPackage) {
+            this.appPackage = appPackage;
+        }
+
+        public String getName() {
+            return "timeStats";
+        }
+
+        public boolean isSupported() {
+            return Build.VERSION.SDK_INT >= 28;
+        }
+
+        public boolean probe() {
+            // timestats are only collected once enabled, so the app's layer
+            // is only listed if it presents a frame within the probe window
+            executeCommand(Arrays.asList("dumpsys", "SurfaceFlinger", "--timestats", "-enable", "-clear"));
+            try {
+                long deadline = SystemClock.uptimeMillis() + TIMESTATS_PROBE_MILLIS;
+                do {
+                    SystemClock.sleep(TIMESTATS_PROBE_POLL_MILLIS);
+                    Pair<Integer, String> result = executeCommand(
+                            Arrays.asList("dumpsys", "SurfaceFlinger", "--timestats", "-dump"), true);
+                    if (result.first != 0) {
+                        return false;
+                    }
+                    for (String line : result.second.split("\n")) {
+                        line = line.trim();
+                        if (line.startsWith("layerName") && line.contains(appPackage)) {
+                            return true;
+                        }
+                    }
+                } while (SystemClock.uptimeMillis() < deadline);
+                return false;
+            } finally {
+                disable();
+            }
+        }
+
+        public void reset() {
+            executeCommand(Arrays.asList("dumpsys", "SurfaceFlinger", "--timestats", "-enable", "-clear"));
+        }
+
+        // Collection is stopped at the end of each span as it is global and
+        // costs every app on the device
+        public void dump(File outFile) {
+            exitDumpsys(Arrays.asList("dumpsys", "SurfaceFlinger", "--timestats", "-dump"), outFile);
+            disable();
+        }
+
+        public void discard() {
+            disable();
+        }
+
+        private void disable() {
+            executeCommand(Arrays.asList("dumpsys", "SurfaceFlinger", "--timestats", "-disable", "-clear"));
+        }
+    }
+
+    public List<FrameSource> getFrameSources(String appPackage) {
+        return Arrays.asList(new SurfaceFlingerFrameSource(appPackage),
+                             new GfxInfoFrameSource(appPackage),
+                             new TimeStatsFrameSource(appPackage));
+    }
+
+    /*
+     * Returns the first supported backend (in order of cost) which currently
+     * yields frame data for appPackage, or null if none do. Should be called
+     * once the app has drawn its first screen.
+     */
+    public FrameSource selectFrameSource(String appPackage) {
+        for (FrameSource source : getFrameSources(appPackage)) {
+            if (source.isSupported() && source.probe()) {
+                logger.log(Level.INFO, "Using " + source.getName() + " frame source for " + appPackage);
+                return source;
+            }
+        }
+        logger.log(Level.WARNING, "No frame source yields data for " + appPackage);
+        return null;
+    }
+
+    /*
+     * Returns the frame backend to be used by SurfaceLogger according to the
+     * "frame_source" parameter: "auto" probes for the cheapest working
+     * backend on first use, a backend name selects it directly provided the
+     * platform supports it. If the parameter is not set, the named backend
+     * is not supported (or dumpsys is disabled) null is returned and the
+     * legacy SurfaceFlinger plus gfxinfo captures are used.
+     */
+    public FrameSource getFrameSource(Bundle parameters) {
+        String name = parameters.getString("frame_source");
+        if (name == null || !Boolean.parseBoolean(parameters.getString("dumpsys_enabled"))) {
+            return null;
+        }
+        if (frameSourceSelected) {
+            return selectedFrameSource;
+        }
+
+        String appPackage = parameters.getString("package");
+        if (name.equals("auto")) {
+            selectedFrameSource = selectFrameSource(appPackage);
+        } else {
+            for (FrameSource source : getFrameSources(appPackage)) {
+                if (!source.getName().equalsIgnoreCase(name)) {
+                    continue;
+                }
+                if (source.isSupported()) {
+                    selectedFrameSource = source;
+                } else {
+                    logger.log(Level.WARNING, "The " + name + " frame source is not supported on SDK "
+                               + Build.VERSION.SDK_INT + ", using the legacy captures");
+                }
+            }
+        }
+        frameSourceSelected = true;
+        return selectedFrameSource;
+    }
+
+    /*
+     * Captures the frame timelines of every SurfaceFlinger layer owned by a
+     * package (e.g. the app window plus a SurfaceView used for video or a
+     * camera preview). Layers are re-enumerated when the span ends so that
+     * surfaces created during the span are included; frames presented
+     * before the span started are discarded.
+     *
+     * Each layer is written to <testTag>_surfFlinger_<n>.log and per-layer
+     * and combined frame statistics to <testTag>_layerStats.log.
+     */
+    public class MultiLayerCapture {
+
+        private String appPackage;
+        private File outputDir;
+        private long startTime;
+        private long refreshPeriod;
+
+        public MultiLayerCapture(String appPackage, File outputDir) {
+            this.appPackage = appPackage;
+            this.outputDir = outputDir;
+        }
+
+        public void start() {
+            for (String layer : getSurfaceFlingerViews(appPackage)) {
+                initDumpsysSurfaceFlinger(appPackage, layer);
+            }
+            refreshPeriod = getRefreshPeriod();
+            startTime = System.nanoTime();
+        }
+
+        public void stop(String testTag) throws Exception {
+            final List<String> layers = getSurfaceFlingerViews(appPackage);
+            final List<File> logs = new ArrayList<File>();
+            List<Thread> dumpers = new ArrayList<Thread>();
+
+            // Dump all layers at once so their timelines cover the same period
+            for (int i = 0; i < layers.size(); i++) {
+                final String layer = layers.get(i);
+                final File log = new File(outputDir, String.format("%s_surfFlinger_%d.log", testTag, i));
+                logs.add(log);
+                Thread dumper = new Thread() {
+                    public void run() {
+                        exitDumpsysSurfaceFlinger(appPackage, layer, log);
+                    }
+                };
+                dumper.start();
+                dumpers.add(dumper);
+            }
+            for (Thread dumper : dumpers) {
+                dumper.join();
+            }
+
+            List<long[]> combinedFrames = new ArrayList<long[]>();
+            long endPeriod = refreshPeriod;
+            BufferedWriter out = new BufferedWriter(new FileWriter(new File(outputDir, testTag + "_layerStats.log")));
+            try {
+                out.write(String.format("layers %d\n", layers.size()));
+                for (int i = 0; i < layers.size(); i++) {
+                    File log = logs.get(i);
+                    if (!log.exists()) {
+                        continue;
+                    }
+                    long layerPeriod = FrameClassifier.readRefreshPeriod(log);
+                    List<long[]> frames = FrameClassifier.readFrames(log, startTime);
+                    FrameClassifier classifier = new FrameClassifier(refreshPeriod);
+                    if (layerPeriod > 0) {
+                        classifier.setEndPeriod(layerPeriod);
+                        endPeriod = layerPeriod;
+                    }
+                    for (long[] frame : frames) {
+                        classifier.addFrame(frame[1]);
+                    }
+                    combinedFrames.addAll(frames);
+
+                    // Layer names contain spaces so are kept on their own line
+                    out.write(String.format("layer%d_name %s\n", i, layers.get(i)));
+                    classifier.writeResults(out, String.format("layer%d_", i));
+                }
+
+                // Frames presented by several layers on the same vsync count once
+                Collections.sort(combinedFrames, new Comparator<long[]>() {
+                    public int compare(long[] a, long[] b) {
+                        return a[1] < b[1] ? -1 : (a[1] > b[1] ? 1 : 0);
+                    }
+                });
+                FrameClassifier combined = new FrameClassifier(refreshPeriod);
+                combined.setEndPeriod(endPeriod);
+                long lastPresent = -1;
+                for (long[] frame : combinedFrames) {
+                    if (frame[1] != lastPresent) {
+                        combined.addFrame(frame[1]);
+                        lastPresent = frame[1];
+                    }
+                }
+                combined.writeResults(out, "combined_");
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    public enum LaunchType { COLD, WARM, HOT };
+
+    /*
+     * Result of launching an app with "am start -W". The ThisTime,
+     * TotalTime and WaitTime figures are as reported by the activity
+     * manager; time to first frame and time to fully drawn are measured
+     * from SurfaceFlinger frame data, the latter being the last frame
+     * presented before the app stopped drawing. All values are in ms,
+     * or -1 if unavailable.
+     */
+    public static class LaunchResult {
+        public LaunchType launchType;
+        public long thisTime = -1;
+        public long totalTime = -1;
+        public long waitTime = -1;
+        public long timeToFirstFrame = -1;
+        public long timeToFullyDrawn = -1;
+        public long timeToInteractive = -1;
+        private Timer timer = new Timer();
+
+        public LaunchResult(LaunchType launchType) {
+            this.launchType = launchType;
+        }
+
+        public Timer result() {
+            return timer;
+        }
+
+        public void writeResults(File file) throws Exception {
+            BufferedWriter out = new BufferedWriter(new FileWriter(file));
+            try {
+                out.write(String.format("launch_type %s\n", launchType.name().toLowerCase()));
+                out.write(String.format("this_time %d\n", thisTime));
+                out.write(String.format("total_time %d\n", totalTime));
+                out.write(String.format("wait_time %d\n", waitTime));
+                out.write(String.format("time_to_first_frame %d\n", timeToFirstFrame));
+                out.write(String.format("time_to_fully_drawn %d\n", timeToFullyDrawn));
+                out.write(String.format("time_to_interactive %d\n", timeToInteractive));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    public static final long LAUNCH_IDLE_MILLIS = 1000;
+    public static final long LAUNCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    /*
+     * Launches the app from the given starting temperature and measures it:
+     *
+     *  COLD - the process is killed first (and the page cache dropped if
+     *         dropCaches is set, which requires root)
+     *  WARM - the process is kept alive but its activities are finished by
+     *         navigating back out of the app
+     *  HOT  - the app is only sent to the background
+     *
+     * If activity is null the package's launcher activity is started. The
+     * launch is measured as the span launch_cold, launch_warm or launch_hot.
+     */
+    public LaunchResult measureLaunch(String appPackage, String activity,
+                                      LaunchType launchType, boolean dropCaches) throws Exception {
+        return measureLaunch(appPackage, activity, launchType, dropCaches, false);
+    }
+
+    /*
+     * As above, but if measureInteractive is set the app is probed for
+     * responsiveness (see waitForInteractive()) as soon as am start returns,
+     * while it may still be drawing. The time to fully drawn is then the
+     * last frame presented before the probe that the app answered, as the
+     * frames after it are the app's response.
+     */
+    public LaunchResult measureLaunch(String appPackage, String activity, LaunchType launchType,
+                                      boolean dropCaches, boolean measureInteractive) throws Exception {
+        prepareLaunch(appPackage, launchType, dropCaches);
+        beginMeasuredSpan("launch_" + launchType.name().toLowerCase());
+        try {
+            return startAndMeasure(appPackage, activity, launchType, measureInteractive);
+        } finally {
+            endMeasuredSpan();
+        }
+    }
+
+    private LaunchResult startAndMeasure(String appPackage, String activity, LaunchType launchType,
+                                         boolean measureInteractive) throws Exception {
+        List<String> command = new ArrayList<String>(Arrays.asList("am", "start", "-W"));
+        if (activity != null) {
+            command.addAll(Arrays.asList("-n", appPackage + "/" + activity));
+        } else {
+            command.addAll(Arrays.asList("-a", "android.intent.action.MAIN",
+                                         "-c", "android.intent.category.LAUNCHER", appPackage));
+        }
+
+        LaunchResult launch = new LaunchResult(launchType);
+        FrameCapture capture = new FrameCapture(appPackage);
+        if (measureInteractive) {
+            // The probe outlasts SurfaceFlinger's frame history, so the
+            // launch's frames are collected as it goes
+            capture.start();
+        }
+        long launchStart = System.nanoTime();
+        launch.result().start();
+        Pair<Integer, String> output = null;
+        try {
+            output = executeCommand(command, true, Category.COMMAND);
+        } finally {
+            launch.result().end();
+            if (measureInteractive && (output == null || output.second.contains("Error"))) {
+                capture.stop();
+            }
+        }
+
+        if (output.second.contains("Error")) {
+            throw new Exception("Unable to launch " + appPackage + ": " + output.second);
+        }
+        for (String line : output.second.split("\n")) {
+            String[] fields = line.trim().split(":\\s*");
+            if (fields.length != 2) {
+                continue;
+            }
+            if (fields[0].equals("ThisTime")) {
+                launch.thisTime = Long.parseLong(fields[1]);
+            } else if (fields[0].equals("TotalTime")) {
+                launch.totalTime = Long.parseLong(fields[1]);
+            } else if (fields[0].equals("WaitTime")) {
+                launch.waitTime = Long.parseLong(fields[1]);
+            }
+        }
+
+        if (measureInteractive) {
+            long[] interactive;
+            try {
+                interactive = probeInteractive(appPackage, null,
+                                               TTI_RESPONSE_DEADLINE_MILLIS, TTI_TIMEOUT_MILLIS);
+            } finally {
+                capture.stop();
+            }
+            long firstPresent = -1;
+            long fullyDrawn = -1;
+            for (long[] frame : capture.getFrames()) {
+                if (frame[1] < launchStart) {
+                    continue;
+                }
+                if (firstPresent < 0) {
+                    firstPresent = frame[1];
+                }
+                if (interactive == null || frame[1] < interactive[1]) {
+                    fullyDrawn = frame[1];
+                }
+            }
+            if (firstPresent >= 0) {
+                launch.timeToFirstFrame = TimeUnit.NANOSECONDS.toMillis(firstPresent - launchStart);
+            }
+            if (fullyDrawn >= 0) {
+                launch.timeToFullyDrawn = TimeUnit.NANOSECONDS.toMillis(fullyDrawn - launchStart);
+            }
+            if (interactive != null) {
+                launch.timeToInteractive = interactive[0] - launch.result().getStart();
+            }
+            return launch;
+        }
+
+        long[] frames = waitForFrameIdle(appPackage, launchStart, LAUNCH_IDLE_MILLIS, LAUNCH_TIMEOUT_MILLIS);
+        if (frames != null) {
+            launch.timeToFirstFrame = TimeUnit.NANOSECONDS.toMillis(frames[0] - launchStart);
+            launch.timeToFullyDrawn = TimeUnit.NANOSECONDS.toMillis(frames[1] - launchStart);
+        }
+        return launch;
+    }
+
+    /*
+     * Measures a launch as configured by the "launch_type" (cold, warm or
+     * hot), "launch_activity" and "launch_drop_caches" parameters, writes
+     * it to <testTag>_launch.log and returns it. Returns null if no
+     * launch_type is given. If "tti_enabled" is set the time to interactive
+     * is measured as well (see waitForInteractive()).
+     */
+    public LaunchResult measureLaunch(Bundle parameters, String testTag) throws Exception {
+        String launchType = parameters.getString("launch_type");
+        if (launchType == null) {
+            return null;
+        }
+
+        LaunchResult launch = measureLaunch(parameters.getString("package"),
+                                            parameters.getString("launch_activity"),
+                                            LaunchType.valueOf(launchType.toUpperCase()),
+                                            Boolean.parseBoolean(parameters.getString("launch_drop_caches")),
+                                            Boolean.parseBoolean(parameters.getString("tti_enabled")));
+        launch.writeResults(new File(parameters.getString("output_dir"), testTag + "_launch.log"));
+        return launch;
+    }
+
+    private void prepareLaunch(String appPackage, LaunchType launchType, boolean dropCaches) throws Exception {
+        switch (launchType) {
+            case COLD:
+                expectAppRestart();
+                executeCommand(Arrays.asList("am", "force-stop", appPackage), false, Category.COMMAND);
+                if (dropCaches) {
+                    Pair<Integer, String> result = executeCommand(Arrays.asList(
+                            "su", "-c", "sync && echo 3 > /proc/sys/vm/drop_caches"), false, Category.COMMAND);
+                    if (result.first != 0) {
+                        logger.log(Level.WARNING, "Unable to drop page cache, root required");
+                    }
+                }
+                break;
+            case WARM:
+                // Back out of the app so its activities are destroyed while
+                // the process stays alive
+                for (int i = 0; i < 5 && appPackage.equals(getUiDevice().getCurrentPackageName()); i++) {
+                    pressBack();
+                    getUiDevice().waitForIdle(uiAutoTimeout);
+                }
+                break;
+            case HOT:
+                getUiDevice().pressHome();
+                getUiDevice().waitForIdle(uiAutoTimeout);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Returns {desired, actual} present times of the frames presented by the
+    // package's layer since notBefore (CLOCK_MONOTONIC ns)
+    @Override
+    public List<long[]> getPresentedFrames(String appPackage, long notBefore) {
+        String packageView = getSurfaceFlingerView(appPackage);
+        if (packageView.isEmpty()) {
+            return new ArrayList<long[]>();
+        }
+        return getLayerFrames(packageView, notBefore);
+    }
+
+    // As getPresentedFrames(), for the named layer (see getSurfaceFlingerViews())
+    public List<long[]> getLayerFrames(String layer, long notBefore) {
+        Pair<Integer, String> result = executeCommand(
+                Arrays.asList("dumpsys", "SurfaceFlinger", "--latency", layer), true);
+        try {
+            return FrameClassifier.readFrames(new BufferedReader(new StringReader(result.second)), notBefore);
+        } catch (Exception exception) {
+            logger.log(Level.WARNING, "Unable to parse SurfaceFlinger latency data", exception);
+            return new ArrayList<long[]>();
+        }
+    }
+
+    @Override
+    protected int getAppPid(String appPackage) {
+        return getPid(appPackage);
+    }
+
+    @Override
+    protected long getLastFrameTime(String appPackage) {
+        long lastPresent = -1;
+        for (long[] frame : getPresentedFrames(appPackage, 0)) {
+            lastPresent = Math.max(lastPresent, frame[1]);
+        }
+        return lastPresent;
+    }
+
+    // SurfaceFlinger keeps the latest 127 frames of a layer, which last just
+    // over a second at 120Hz
+    public static final long FRAME_CAPTURE_POLL_MILLIS = 1000;
+
+    /*
+     * Collects every frame presented by a package's layer between start()
+     * and stop(). The layer is looked up at start() and its history read
+     * once at stop(). SurfaceFlinger only keeps the latest 127 frames of a
+     * layer, so for spans longer than FRAME_CAPTURE_POLL_MILLIS the history
+     * is also read in the background every FRAME_CAPTURE_POLL_MILLIS and
+     * merged. If the package's layer changed during the span, the new
+     * layer's history is read at stop() as well.
+     */
+    public class FrameCapture {
+
+        private String appPackage;
+        private String layer;
+        private long startTime;
+        private long lastPresent;
+        private List<long[]> frames = new ArrayList<long[]>();
+        private List<Long> inputs = new ArrayList<Long>();
+        private volatile boolean running = false;
+        private Thread poller;
+
+        public FrameCapture(String appPackage) {
+            this.appPackage = appPackage;
+        }
+
+        public void start() {
+            String packageView = getSurfaceFlingerView(appPackage);
+            synchronized (this) {
+                frames.clear();
+                inputs.clear();
+                layer = packageView;
+                startTime = System.nanoTime();
+                lastPresent = startTime - 1;
+            }
+            running = true;
+            poller = new Thread(new Runnable() {
+                public void run() {
+                    while (running) {
+                        try {
+                            Thread.sleep(FRAME_CAPTURE_POLL_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (running) {
+                            collect();
+                        }
+                    }
+                }
+            }, "FrameCapture");
+            poller.setDaemon(true);
+            poller.start();
+        }
+
+        public List<long[]> stop() {
+            running = false;
+            poller.interrupt();
+            try {
+                poller.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            collect();
+            String packageView = getSurfaceFlingerView(appPackage);
+            if (!packageView.equals(layer)) {
+                synchronized (this) {
+                    layer = packageView;
+                    lastPresent = startTime - 1;
+                }
+                collect();
+            }
+            return getFrames();
+        }
+
+        // CLOCK_MONOTONIC ns at which the capture started
+        public long getStartTime() {
+            return startTime;
+        }
+
+        // {desired, actual} present times, in order of presentation
+        public synchronized List<long[]> getFrames() {
+            return new ArrayList<long[]>(frames);
+        }
+
+        // Records that input is about to be injected, so that the app is
+        // not counted as late for the time it spent waiting for it
+        public synchronized void markInput() {
+            inputs.add(System.nanoTime());
+        }
+
+        public synchronized FrameClassifier classify(long refreshPeriod) {
+            FrameClassifier classifier = new FrameClassifier(refreshPeriod);
+            for (long input : inputs) {
+                classifier.addInput(input);
+            }
+            for (long[] frame : frames) {
+                classifier.addFrame(frame[1]);
+            }
+            return classifier;
+        }
+
+        private synchronized void collect() {
+            if (layer.isEmpty()) {
+                return;
+            }
+            Set<Long> seen = new HashSet<Long>();
+            for (long[] frame : frames) {
+                seen.add(frame[1]);
+            }
+            for (long[] frame : getLayerFrames(layer, lastPresent + 1)) {
+                if (seen.add(frame[1])) {
+                    frames.add(frame);
+                }
+                lastPresent = Math.max(lastPresent, frame[1]);
+            }
+            Collections.sort(frames, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return a[1] < b[1] ? -1 : (a[1] > b[1] ? 1 : 0);
+                }
+            });
+        }
+    }
+
+    /*
+     * Polls the package's frames until none have been presented for
+     * idleMillis, or timeoutMillis has elapsed. Returns the present times
+     * of the first and last frames seen since notBefore, or null if the
+     * app presented no frames.
+     */
+    public long[] waitForFrameIdle(String appPackage, long notBefore, long idleMillis, long timeoutMillis) {
+        final long pollMillis = 100;
+        long firstPresent = -1;
+        long lastPresent = -1;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (System.nanoTime() < deadline) {
+            for (long[] frame : getPresentedFrames(appPackage, notBefore)) {
+                if (firstPresent < 0 || frame[1] < firstPresent) {
+                    firstPresent = frame[1];
+                }
+                lastPresent = Math.max(lastPresent, frame[1]);
+            }
+            long idleSince = (lastPresent < 0) ? notBefore : lastPresent;
+            if (lastPresent >= 0 && System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+                break;
+            }
+            SystemClock.sleep(pollMillis);
+        }
+
+        return (firstPresent < 0) ? null : new long[] {firstPresent, lastPresent};
+    }
+
+    public static final long TTI_RESPONSE_DEADLINE_MILLIS = 200;
+    public static final long TTI_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // Framework default touch slop, used if the configured one cannot be read
+    public static final int TOUCH_SLOP_DIPS = 8;
+    // Each step of a swipe is injected 5 ms apart, so holding still for 20
+    // steps before lifting leaves VelocityTracker (100 ms horizon) nothing
+    // to fling with
+    public static final int NUDGE_STEPS = 20;
+
+    /*
+     * Repeatedly nudges target (or the centre of the display if null) with
+     * a short drag, alternating direction so the content ends up where it
+     * started, until the app responds to one of them by presenting a frame
+     * (or, if no frame data is available, updating its window) within
+     * responseDeadlineMillis of the end of the drag. Returns the wall clock
+     * time (ms) at which the first answered nudge was issued, for
+     * comparison with Timer values, or -1 if the app did not respond within
+     * timeoutMillis.
+     *
+     * The drag travels twice the touch slop, so it scrolls rather than
+     * landing as a tap, and holds still before lifting so that it does not
+     * fling. While the app is still presenting frames of its own no nudge
+     * is issued, as a frame could not be told apart from a response.
+     *
+     * target should be a view that visibly reacts to scrolling, such as a
+     * document page or list, otherwise the app will never appear responsive.
+     */
+    public long waitForInteractive(String appPackage, UiObject target,
+                                   long responseDeadlineMillis, long timeoutMillis) throws Exception {
+        long[] interactive = probeInteractive(appPackage, target, responseDeadlineMillis, timeoutMillis);
+        return (interactive == null) ? -1 : interactive[0];
+    }
+
+    // As waitForInteractive() but returns the answered nudge's issue time
+    // as {wall clock ms, CLOCK_MONOTONIC ns}, or null
+    private long[] probeInteractive(String appPackage, UiObject target,
+                                    long responseDeadlineMillis, long timeoutMillis) throws Exception {
+        int x = getDisplayCentreWidth();
+        int y = getDisplayCentreHeight();
+        if (target != null) {
+            Rect bounds = target.getVisibleBounds();
+            x = bounds.centerX();
+            y = bounds.centerY();
+        }
+        int nudge = getTouchSlop() * 2;
+        boolean hasFrameData = !getSurfaceFlingerView(appPackage).isEmpty();
+        long responseDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(responseDeadlineMillis);
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            if (hasFrameData
+                    && !getPresentedFrames(appPackage, System.nanoTime() - responseDeadlineNanos).isEmpty()) {
+                SystemClock.sleep(20);
+                continue;
+            }
+
+            long issuedMillis = System.currentTimeMillis();
+            long issuedNanos = System.nanoTime();
+            Point[] drag = {new Point(x, y), new Point(x, y + nudge), new Point(x, y + nudge)};
+            getUiDevice().swipe(drag, NUDGE_STEPS);
+            nudge = -nudge;
+
+            if (hasFrameData) {
+                long responseDeadline = System.currentTimeMillis() + responseDeadlineMillis;
+                while (System.currentTimeMillis() < responseDeadline) {
+                    if (!getPresentedFrames(appPackage, issuedNanos).isEmpty()) {
+                        return new long[] {issuedMillis, issuedNanos};
+                    }
+                    SystemClock.sleep(20);
+                }
+            } else if (getUiDevice().waitForWindowUpdate(appPackage, responseDeadlineMillis)) {
+                return new long[] {issuedMillis, issuedNanos};
+            }
+        }
+        return null;
+    }
+
+    // The distance (px) a touch has to move before it is taken as a scroll
+    private int getTouchSlop() {
+        Resources resources = Resources.getSystem();
+        int id = resources.getIdentifier("config_viewConfigurationTouchSlop", "dimen", "android");
+        if (id != 0) {
+            return resources.getDimensionPixelSize(id);
+        }
+        return Math.round(TOUCH_SLOP_DIPS * resources.getDisplayMetrics().density);
+    }
+
+    /*
+     * A named scenario step run by a StepSession. precondition() checks that
+     * the app is in the state the step starts from and recover() tries to
+     * get it back there after a failure, e.g. by dismissing a dialog the
+     * step left open. Setup steps only navigate, so they are re-run to fast
+     * forward to a later step when the app has to be relaunched; measured
+     * steps are never repeated unless they are the one that failed.
+     */
+    public abstract class Step {
+        private String name;
+        private boolean setup;
+
+        public Step(String name) {
+            this(name, false);
+        }
+
+        public Step(String name, boolean setup) {
+            this.name = name;
+            this.setup = setup;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSetup() {
+            return setup;
+        }
+
+        public boolean precondition() throws Exception {
+            return true;
+        }
+
+        public void recover() throws Exception {
+        }
+
+        public abstract void run() throws Exception;
+    }
+
+    public static final int STEP_RETRIES_DEFAULT = 1;
+    public static final int STEP_BACK_PRESSES_MAX = 5;
+    public static final long STEP_SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    public static final String STEP_LOG = "steps.log";
+
+    /*
+     * Runs a sequence of steps, recording which have completed. When a step
+     * fails it is retried (up to the step_retries parameter) once the app
+     * has been brought back to the step's precondition, first in place by
+     * the step's recover() and back navigation, and failing that by
+     * relaunching the app and re-running the setup steps before it. Spans
+     * the failed step left open are closed first, without results.
+     */
+    public class StepSession {
+        private Bundle parameters;
+        private int retries;
+        private List<Step> steps = new ArrayList<Step>();
+        private List<String> completed = new ArrayList<String>();
+        private Map<String, Integer> attempts = new LinkedHashMap<String, Integer>();
+        private Map<String, String> recoveries = new LinkedHashMap<String, String>();
+        private String failed = null;
+
+        public StepSession(Bundle parameters) {
+            this.parameters = parameters;
+            String value = parameters.getString("step_retries");
+            this.retries = (value == null) ? STEP_RETRIES_DEFAULT : Integer.parseInt(value);
+        }
+
+        public StepSession add(Step step) {
+            steps.add(step);
+            return this;
+        }
+
+        public List<String> getCompleted() {
+            return completed;
+        }
+
+        public void run() throws Exception {
+            try {
+                for (int i = 0; i < steps.size(); i++) {
+                    runStep(i);
+                }
+            } finally {
+                writeResults(new File(parameters.getString("output_dir"), STEP_LOG));
+            }
+        }
+
+        private void runStep(int index) throws Exception {
+            Step step = steps.get(index);
+            for (int attempt = 1; ; attempt++) {
+                attempts.put(step.getName(), attempt);
+                try {
+                    step.run();
+                    completed.add(step.getName());
+                    return;
+                } catch (Exception exception) {
+                    abortMeasuredSpans();
+                    if (attempt > retries) {
+                        failed = step.getName();
+                        throw exception;
+                    }
+                    logger.log(Level.WARNING, "Step " + step.getName() + " failed, recovering", exception);
+                    String recovery;
+                    try {
+                        recovery = recover(index);
+                    } catch (Exception recoveryException) {
+                        // Relaunching or replaying the setup steps failed;
+                        // report it without losing the step's own failure
+                        failed = step.getName();
+                        recoveries.put(step.getName(), "failed");
+                        logger.log(Level.WARNING, "Recovery of step " + step.getName() + " failed",
+                                   recoveryException);
+                        throw new Exception("Step " + step.getName() + " failed and could not be recovered: "
+                                            + recoveryException, exception);
+                    }
+                    if (recovery == null) {
+                        failed = step.getName();
+                        throw exception;
+                    }
+                    recoveries.put(step.getName(), recovery);
+                }
+            }
+        }
+
+        // Returns how the step's precondition was restored, or null if it
+        // could not be
+        private String recover(int index) throws Exception {
+            Step step = steps.get(index);
+
+            for (int backPresses = 0; backPresses <= STEP_BACK_PRESSES_MAX; backPresses++) {
+                try {
+                    step.recover();
+                } catch (Exception exception) {
+                    logger.log(Level.WARNING, "Recovery of step " + step.getName() + " failed", exception);
+                }
+                if (satisfied(step)) {
+                    return (backPresses == 0) ? "in_place" : "back";
+                }
+                pressBack();
+                waitForQuiescence(STEP_SETTLE_MILLIS);
+            }
+
+            relaunchApp(parameters.getString("package"));
+            for (int i = 0; i < index; i++) {
+                if (steps.get(i).isSetup()) {
+                    steps.get(i).run();
+                }
+            }
+            return satisfied(step) ? "relaunch" : null;
+        }
+
+        private boolean satisfied(Step step) {
+            try {
+                return step.precondition();
+            } catch (Exception exception) {
+                return false;
+            }
+        }
+
+        private void writeResults(File file) throws IOException {
+            BufferedWriter out = new BufferedWriter(new FileWriter(file));
+            try {
+                out.write(String.format("steps_total %d\n", steps.size()));
+                out.write(String.format("steps_completed %d\n", completed.size()));
+                for (Entry<String, Integer> entry : attempts.entrySet()) {
+                    out.write(String.format("step_%s_attempts %d\n", entry.getKey(), entry.getValue()));
+                }
+                for (Entry<String, String> entry : recoveries.entrySet()) {
+                    out.write(String.format("step_%s_recovery %s\n", entry.getKey(), entry.getValue()));
+                }
+                if (failed != null) {
+                    out.write(String.format("step_failed %s\n", failed));
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    public static final long SUSTAINED_DURATION_DEFAULT = TimeUnit.MINUTES.toMillis(10);
+    public static final int SUSTAINED_FRAME_PERCENTILE = 90;
 
-public class UxPerfUiAutomation extends BaseUiAutomation {
+    /*
+     * Repeats steps for the "sustained_duration_secs" parameter's worth of
+     * wall clock time, to measure the performance a device sustains once it
+     * has heated up rather than that of a single cool pass. For every loop
+     * the duration, FPS, 90th percentile frame time and percentage of janky
+     * frames of the app's layer, the mean CPU frequency, the lowest CPU
+     * frequency cap (as a percentage of that CPU's maximum) and the highest
+     * thermal zone reading are written to <testTag>_sustained.log,
+     * followed by:
+     *
+     *   sustained_peak_ratio - the best loop's 90th percentile frame time
+     *                          over the mean of the last third of the
+     *                          loops', or -1 if the app presented no frames.
+     *                          Frame times leave out the app's idle gaps
+     *                          before each step (see FrameClassifier).
+     *   time_to_throttle_ms  - time until a CPU frequency cap was first seen
+     *                          below its value at the start, checked at the
+     *                          end of each loop, or -1 if it never was
+     */
+    public void runSustained(String testTag, Bundle parameters, Step... steps) throws Exception {
+        String duration = parameters.getString("sustained_duration_secs");
+        long durationMillis = (duration == null)
+                            ? SUSTAINED_DURATION_DEFAULT : TimeUnit.SECONDS.toMillis(Long.parseLong(duration));
+        FrameCapture capture = new FrameCapture(parameters.getString("package"));
+        long refreshPeriod = getRefreshPeriod();
+        long[] initialCaps = readCpuFreqs("scaling_max_freq");
+        long[] maxFreqs = readCpuFreqs("cpuinfo_max_freq");
 
-    private Logger logger = Logger.getLogger(UxPerfUiAutomation.class.getName());
+        // 90th percentile frame time (ns) of each loop that presented frames
+        List<Long> frameTimes = new ArrayList<Long>();
+        int loop = 1;
+        long timeToThrottle = -1;
+        long runStart = System.currentTimeMillis();
+        BufferedWriter out = new BufferedWriter(new FileWriter(
+                new File(parameters.getString("output_dir"), testTag + "_sustained.log")));
+        try {
+            do {
+                Timer timer = new Timer();
+                beginMeasuredSpan(testTag + "_sustained");
+                capture.start();
+                timer.start();
+                for (Step step : steps) {
+                    capture.markInput();
+                    step.run();
+                }
+                timer.end();
+                capture.stop();
+                endMeasuredSpan();
 
-    public enum GestureType { UIDEVICE_SWIPE, UIOBJECT_SWIPE, PINCH };
+                FrameClassifier frames = capture.classify(refreshPeriod);
+                long frameTime = percentile(frames.getFrameTimes(), SUSTAINED_FRAME_PERCENTILE);
+                if (frameTime > 0) {
+                    frameTimes.add(frameTime);
+                }
 
-    public class SurfaceLogger {
+                long[] freqs = readCpuFreqs("scaling_cur_freq");
+                long[] caps = readCpuFreqs("scaling_max_freq");
+                long freqTotal = 0;
+                int online = 0;
+                long capPercent = 100;
+                for (int cpu = 0; cpu < freqs.length; cpu++) {
+                    if (freqs[cpu] > 0) {
+                        freqTotal += freqs[cpu];
+                        online++;
+                    }
+                    if (caps[cpu] > 0 && cpu < maxFreqs.length && maxFreqs[cpu] > 0) {
+                        capPercent = Math.min(capPercent, caps[cpu] * 100 / maxFreqs[cpu]);
+                    }
+                    if (timeToThrottle < 0 && caps[cpu] > 0 && cpu < initialCaps.length
+                            && caps[cpu] < initialCaps[cpu]) {
+                        timeToThrottle = timer.getFinish() - runStart;
+                    }
+                }
 
-        private Bundle parameters;
-        private String gfxInfologName;
-        private String surfFlingerlogName;
-        private Timer result;
+                String prefix = "loop_" + loop++;
+                out.write(String.format("%s_start_ms %d\n", prefix, timer.getStart() - runStart));
+                out.write(String.format("%s_duration_ms %d\n", prefix, timer.getDuration()));
+                out.write(String.format("%s_fps %.2f\n", prefix, frames.getFps()));
+                out.write(String.format("%s_frame_p%d_ms %.2f\n", prefix, SUSTAINED_FRAME_PERCENTILE,
+                                        frameTime / 1e6));
+                out.write(String.format("%s_jank_pct %.2f\n", prefix, frames.getFrameCount() == 0
+                                        ? 0.0 : frames.getLateCount() * 100.0 / frames.getFrameCount()));
+                out.write(String.format("%s_cpu_freq_khz %d\n", prefix, online == 0 ? -1 : freqTotal / online));
+                out.write(String.format("%s_cpu_cap_pct %d\n", prefix, capPercent));
+                out.write(String.format("%s_temp %d\n", prefix, readMaxTemperature()));
+            } while (System.currentTimeMillis() - runStart < durationMillis);
 
-        public SurfaceLogger(String testTag, Bundle parameters) {
-            this.parameters = parameters;
-            this.gfxInfologName = String.format(testTag + "_gfxInfo.log");
-            this.surfFlingerlogName = String.format(testTag + "_surfFlinger.log");
-            this.result = new Timer();
+            out.write(String.format("loops %d\n", loop - 1));
+            if (frameTimes.isEmpty()) {
+                out.write("sustained_peak_ratio -1\n");
+            } else {
+                long peak = Collections.min(frameTimes);
+                List<Long> tail = frameTimes.subList(frameTimes.size() - Math.max(frameTimes.size() / 3, 1),
+                                                     frameTimes.size());
+                double sustained = 0;
+                for (Long frameTime : tail) {
+                    sustained += (double) frameTime / tail.size();
+                }
+                out.write(String.format("peak_frame_p%d_ms %.2f\n", SUSTAINED_FRAME_PERCENTILE, peak / 1e6));
+                out.write(String.format("sustained_frame_p%d_ms %.2f\n", SUSTAINED_FRAME_PERCENTILE,
+                                        sustained / 1e6));
+                out.write(String.format("sustained_peak_ratio %.3f\n", peak / sustained));
+            }
+            out.write(String.format("time_to_throttle_ms %d\n", timeToThrottle));
+        } finally {
+            out.close();
         }
+    }
 
-        public void start() {
-            startDumpsysGfxInfo(parameters);
-            startDumpsysSurfaceFlinger(parameters);
-            result.start();
+    // Reads cpufreq/<name> of every CPU, -1 where unavailable (e.g. offline)
+    private long[] readCpuFreqs(String name) {
+        List<Long> values = new ArrayList<Long>();
+        for (int cpu = 0; new File("/sys/devices/system/cpu/cpu" + cpu).exists(); cpu++) {
+            values.add(readSysfsValue(new File("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/" + name)));
         }
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
 
-        public void stop() throws Exception {
-            result.end();
-            stopDumpsysSurfaceFlinger(parameters, surfFlingerlogName);
-            stopDumpsysGfxInfo(parameters, gfxInfologName);
+    private long readMaxTemperature() {
+        long max = -1;
+        for (int zone = 0; new File("/sys/class/thermal/thermal_zone" + zone).exists(); zone++) {
+            max = Math.max(max, readSysfsValue(new File("/sys/class/thermal/thermal_zone" + zone + "/temp")));
         }
+        return max;
+    }
 
-        public Timer result() {
-            return result;
+    private static long readSysfsValue(File file) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            return (line == null) ? -1 : Long.parseLong(line.trim());
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Restarts the app from its launcher activity and waits for it to settle
+    public void relaunchApp(String appPackage) {
+        expectAppRestart();
+        executeCommand(Arrays.asList("am", "force-stop", appPackage), false, Category.COMMAND);
+        executeCommand(Arrays.asList("monkey", "-p", appPackage,
+                                     "-c", "android.intent.category.LAUNCHER", "1"), false, Category.COMMAND);
+        long deadline = SystemClock.uptimeMillis() + LAUNCH_TIMEOUT_MILLIS;
+        while (!appPackage.equals(getUiDevice().getCurrentPackageName())
+                && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(100);
+        }
+        waitForQuiescence(Math.max(deadline - SystemClock.uptimeMillis(), 0), LAUNCH_IDLE_MILLIS);
+    }
+
+    /*
+     * Opens uri in appPackage with an ACTION_VIEW intent, skipping the app's
+     * own navigation to it. Intended for unmeasured setup only; callers
+     * should fall back to navigating through the UI when this returns false.
+     * Returns true once expected (if not null) is shown within timeout.
+     */
+    public boolean viewWithIntent(String appPackage, String uri, String mimeType,
+                                  UiSelector expected, long timeout) {
+        List<String> command = new ArrayList<String>(Arrays.asList(
+                "am", "start", "-W", "-a", "android.intent.action.VIEW",
+                "-d", uri, "--grant-read-uri-permission"));
+        if (mimeType != null) {
+            command.add("-t");
+            command.add(mimeType);
+        }
+        command.add(appPackage);
+
+        Pair<Integer, String> result = executeCommand(command, true, Category.COMMAND);
+        if (result.first != 0 || result.second.contains("Error")) {
+            logger.warning("Unable to view " + uri + " with an intent: " + result.second);
+            return false;
+        }
+        return (expected == null) || new UiObject(expected).waitForExists(timeout);
+    }
+
+    public static final String APP_STATE_MARKER = "app_state.restored";
+
+    // True if WA restored a snapshot of the app's data before this run
+    public boolean isAppStateRestored() {
+        return new File(getParams().getString("workdir"), APP_STATE_MARKER).exists();
+    }
+
+    /*
+     * Checks that an app whose data was restored from a snapshot taken
+     * after its first-run flow has come up in the post-onboarding state, by
+     * waiting for expected to appear. Returns false if no snapshot was
+     * restored or the app is not in that state, in which case the first-run
+     * flow has to be walked as usual.
+     */
+    public boolean verifyAppState(UiSelector expected, long timeout) {
+        if (!isAppStateRestored()) {
+            return false;
+        }
+        if (new UiObject(expected).waitForExists(timeout)) {
+            return true;
+        }
+        logger.warning("App state was restored but the app is not in the expected state");
+        return false;
+    }
+
+    public static final String APP_STATE_REQUEST = "app_state.capture";
+    public static final String APP_STATE_CAPTURE_FILE = "app_state.capture.tar";
+
+    /*
+     * Takes the snapshot of the app's data that WA restores before later
+     * iterations, if WA asked for one (it does when it has none yet). To be
+     * called once the first-run flow has been walked and before anything
+     * is measured, so that the snapshot holds the post-onboarding state
+     * rather than whatever the test leaves behind. The app is stopped while
+     * its data is archived and relaunched afterwards, so the caller must
+     * navigate from its launcher activity again. Returns true if a
+     * snapshot was taken.
+     */
+    public boolean captureAppState() throws Exception {
+        String workdir = getParams().getString("workdir");
+        File request = new File(workdir, APP_STATE_REQUEST);
+        if (!request.exists()) {
+            return false;
+        }
+
+        // <data directory> <busybox> <excluded entries, comma separated>
+        BufferedReader reader = new BufferedReader(new FileReader(request));
+        String[] fields;
+        try {
+            String line = reader.readLine();
+            fields = (line == null) ? new String[0] : line.trim().split("\\s+");
+        } finally {
+            reader.close();
+        }
+        request.delete();
+        if (fields.length < 2) {
+            logger.warning("Ignoring malformed app state request");
+            return false;
+        }
+        String dataDir = fields[0];
+        String busybox = fields[1];
+        List<String> excluded = (fields.length > 2) ? Arrays.asList(fields[2].split(",")) : new ArrayList<String>();
+
+        String appPackage = getParams().getString("package");
+        executeCommand(Arrays.asList("am", "force-stop", appPackage), false, Category.COMMAND);
+        Pair<Integer, String> listing = executeCommand(Arrays.asList("su", "-c", "ls " + dataDir), true,
+                                                       Category.COMMAND);
+        StringBuilder entries = new StringBuilder();
+        for (String entry : listing.second.split("\\s+")) {
+            if (entry.length() > 0 && !excluded.contains(entry)) {
+                entries.append(' ').append(entry);
+            }
+        }
+        boolean captured = false;
+        if (listing.first == 0 && entries.length() > 0) {
+            String archive = new File(workdir, APP_STATE_CAPTURE_FILE).getPath();
+            Pair<Integer, String> result = executeCommand(Arrays.asList(
+                    "su", "-c", "cd " + dataDir + " && " + busybox + " tar -cf " + archive + entries),
+                    false, Category.COMMAND);
+            captured = (result.first == 0);
         }
+        if (!captured) {
+            logger.warning("Unable to capture the app state of " + appPackage);
+        }
+        relaunchApp(appPackage);
+        return captured;
     }
 
     public static class Timer {
@@ -83,11 +1568,21 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
             this.startTime = System.currentTimeMillis();
         }
 
+        public void start(long startTime) {
+            this.startTime = startTime;
+        }
+
         public void end() {
             this.endTime   = System.currentTimeMillis();
             this.duration = this.endTime - this.startTime;
         }
 
+        // For events whose start or end is only known after the fact
+        public void end(long endTime) {
+            this.endTime   = endTime;
+            this.duration = this.endTime - this.startTime;
+        }
+
         public long getStart() {
             return this.startTime;
         }
@@ -101,7 +1596,98 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
         }
     }
 
+    /*
+     * Returns the trace-event exporter for this run, creating it (and the
+     * CPU frequency/memory/thermal sampler) on first use if
+     * "trace_export_enabled" is set, or null if exporting is disabled. All
+     * spans and samples for the run are written to a single
+     * trace_events.json in the output directory.
+     */
+    public TraceEventWriter getTraceExport(Bundle parameters) {
+        if (traceExport != null
+                || !Boolean.parseBoolean(parameters.getString("trace_export_enabled"))) {
+            return traceExport;
+        }
+
+        try {
+            File outFile = new File(parameters.getString("output_dir"), TRACE_EXPORT_FILE);
+            traceExport = new TraceEventWriter(outFile, parameters.getString("package"));
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Unable to create trace event file", exception);
+            return null;
+        }
+
+        long interval = TRACE_EXPORT_INTERVAL_DEFAULT;
+        if (parameters.getString("trace_export_interval_ms") != null) {
+            interval = Long.parseLong(parameters.getString("trace_export_interval_ms"));
+        }
+        traceSampler = new TraceSampler(traceExport, interval);
+        traceSampler.start();
+        return traceExport;
+    }
+
+    public void stopTraceExport() {
+        if (traceSampler != null) {
+            traceSampler.finish();
+            traceSampler = null;
+        }
+        if (traceExport != null) {
+            traceExport.close();
+            traceExport = null;
+        }
+    }
+
+    // Emit the interval between consecutive presented frames from a
+    // "dumpsys SurfaceFlinger --latency" capture as a counter series
+    public void exportFrameTimes(TraceEventWriter traceEvents, File surfFlingerLog) {
+        BufferedReader bufferedReader = null;
+        try {
+            bufferedReader = new BufferedReader(new FileReader(surfFlingerLog));
+            String line = bufferedReader.readLine(); // refresh period
+            long previous = 0;
+            while ((line = bufferedReader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 3) {
+                    continue;
+                }
+                long presented = Long.parseLong(fields[1]);
+                if (presented == 0 || presented == Long.MAX_VALUE) {
+                    continue;  // frame not yet presented
+                }
+                if (previous != 0) {
+                    traceEvents.counter("frame_time_us", presented / 1000, (presented - previous) / 1000);
+                }
+                previous = presented;
+            }
+        } catch (Exception exception) {
+            logger.log(Level.WARNING, "Unable to export frame times", exception);
+        } finally {
+            if (bufferedReader != null) {
+                try {
+                    bufferedReader.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        stopTraceExport();
+        super.tearDown();
+    }
+
     public String getSurfaceFlingerView(String appPackage) {
+        overhead.begin(Category.DUMPSYS);
+        try {
+            return listSurfaceFlingerView(appPackage);
+        } finally {
+            overhead.end();
+        }
+    }
+
+    private String listSurfaceFlingerView(String appPackage) {
         BufferedReader bufferedReader = null;
         List<String> surfaceFlingerList = new ArrayList<String>();
         String packageView = "";
@@ -132,6 +1718,87 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
         return packageView;
     }
 
+    // Returns every layer owned by appPackage, including SurfaceView layers
+    // which are named "SurfaceView - <package>/<activity>" on newer releases
+    public List<String> getSurfaceFlingerViews(String appPackage) {
+        List<String> views = new ArrayList<String>();
+        Pair<Integer, String> result =
+            executeCommand(Arrays.asList("dumpsys", "SurfaceFlinger", "--list"), true);
+        for (String line : result.second.split("\n")) {
+            if (line.contains(appPackage)) {
+                views.add(line.trim());
+            }
+        }
+        return views;
+    }
+
+    public int getPid(String appPackage) {
+        // pidof is only available on toybox based devices so fall back to ps
+        Pair<Integer, String> result = executeCommand(Arrays.asList("pidof", appPackage), true);
+        if (result.first == 0 && result.second.trim().length() > 0) {
+            try {
+                return Integer.parseInt(result.second.trim().split("\\s+")[0]);
+            } catch (NumberFormatException e) {
+                logger.log(Level.FINE, "Unexpected pidof output: " + result.second);
+            }
+        }
+
+        result = executeCommand(Arrays.asList("ps"), true);
+        for (String line : result.second.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length > 1 && fields[fields.length - 1].equals(appPackage)) {
+                return Integer.parseInt(fields[1]);
+            }
+        }
+        return -1;
+    }
+
+    public Set<Integer> getThreadIds(int pid) {
+        Set<Integer> threadIds = new HashSet<Integer>();
+        String[] tasks = new File("/proc/" + pid + "/task").list();
+        if (tasks != null) {
+            for (String task : tasks) {
+                threadIds.add(Integer.parseInt(task));
+            }
+        }
+        return threadIds;
+    }
+
+    // With no layer name "dumpsys SurfaceFlinger --latency" reports only the
+    // current refresh period (in ns)
+    @Override
+    public long getRefreshPeriod() {
+        Pair<Integer, String> result =
+            executeCommand(Arrays.asList("dumpsys", "SurfaceFlinger", "--latency"), true);
+        try {
+            return Long.parseLong(result.second.trim().split("\\s+")[0]);
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, "Unable to read refresh period, assuming 60Hz");
+            return FrameClassifier.DEFAULT_REFRESH_PERIOD;
+        }
+    }
+
+    @Override
+    public void abortMeasuredSpans() {
+        while (!openLoggers.isEmpty()) {
+            openLoggers.peek().abort();
+        }
+        super.abortMeasuredSpans();
+    }
+
+    public void classifyFrames(File surfFlingerLog, long refreshPeriod, File outFile) {
+        try {
+            FrameClassifier classifier = new FrameClassifier(refreshPeriod);
+            classifier.parse(surfFlingerLog);
+            classifier.writeResults(outFile);
+            if (classifier.refreshPeriodChanged()) {
+                logger.log(Level.INFO, "Refresh period changed during " + surfFlingerLog.getName());
+            }
+        } catch (Exception exception) {
+            logger.log(Level.WARNING, "Unable to classify frames", exception);
+        }
+    }
+
     public void initDumpsysSurfaceFlinger(String appPackage) {
         initDumpsysSurfaceFlinger(appPackage, getSurfaceFlingerView(appPackage));
     }
@@ -176,6 +1843,22 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
     }
 
     public Pair<Integer, String> executeCommand(List<String> command, boolean readOutput) {
+        return executeCommand(command, readOutput, Category.DUMPSYS);
+    }
+
+    // category is what the time is charged to in the overhead breakdown:
+    // DUMPSYS for instrumentation, COMMAND for commands that drive the app
+    public Pair<Integer, String> executeCommand(List<String> command, boolean readOutput,
+                                                Category category) {
+        overhead.begin(category);
+        try {
+            return runCommand(command, readOutput);
+        } finally {
+            overhead.end();
+        }
+    }
+
+    private Pair<Integer, String> runCommand(List<String> command, boolean readOutput) {
         StringBuilder stringBuilder = new StringBuilder();
         ProcessBuilder processBuilder = new ProcessBuilder();
         BufferedReader bufferedReader = null;
@@ -185,8 +1868,9 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
         try {
             processBuilder.command(command);
             Process process = processBuilder.start();
-            exitValue = process.waitFor();
 
+            // Drain the output before waiting, large dumps would otherwise
+            // fill the pipe and block the command
             if (readOutput) {
                 bufferedReader = new BufferedReader(
                         new InputStreamReader(process.getInputStream()));
@@ -198,6 +1882,8 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
                 }
             }
 
+            exitValue = process.waitFor();
+
             output = stringBuilder.toString();
 
         } catch (Exception exception) {
@@ -216,6 +1902,15 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
     }
 
     public void exitDumpsys(List<String> command, File  filename) {
+        overhead.begin(Category.DUMPSYS);
+        try {
+            writeDumpsys(command, filename);
+        } finally {
+            overhead.end();
+        }
+    }
+
+    private void writeDumpsys(List<String> command, File  filename) {
         FileWriter fileWriter = null;
         BufferedReader bufferedReader = null;
         try {
@@ -279,6 +1974,420 @@ public class UxPerfUiAutomation extends BaseUiAutomation {
         }
     }
 
+    public static final long SWIPE_STEP_MILLIS = 5;  // UiAutomator injects a move every 5 ms
+    public static final int PINCH_TOUCH_HALF_WIDTH = 20;
+    public static final long SWEEP_SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(3);
+    public static final int[] FRAME_TIME_PERCENTILES = {50, 90, 95, 99};
+
+    /*
+     * Runs every combination of the gesture parameters below against
+     * target, capturing the frames of each gesture and the animation that
+     * follows it until the app settles, to show at which velocity the app's
+     * scrolling or zooming starts to drop frames. All parameters are comma
+     * separated lists:
+     *
+     *   sweep_steps      - injection steps per gesture, a move is injected
+     *                      every 5 ms so fewer steps make a faster gesture
+     *   sweep_directions - swipe directions (up, down, left, right)
+     *   sweep_pinches    - pinch types (in, out)
+     *   sweep_percents   - pinch sizes, as a percentage of the target
+     *
+     * Swipes move on to other content and pinches change the zoom, so
+     * reset, if not null, is run (unmeasured) before every point to bring
+     * target back to the same state, e.g. the same photo unzoomed.
+     *
+     * Each point's finger velocity, frame count, janky frame percentage and
+     * frame time percentiles are written to
+     * <testTag>_sweep.log, keyed by swipe_<direction>_<steps> or
+     * pinch_<type>_<steps>_<percent>.
+     */
+    public void runGestureSweep(String testTag, Bundle parameters, UiObject target,
+                                Step reset) throws Exception {
+        Map<String, GestureTestParams> points = new LinkedHashMap<String, GestureTestParams>();
+        List<Integer> steps = parseInts(parameters.getString("sweep_steps"));
+        for (String direction : parseList(parameters.getString("sweep_directions"))) {
+            for (int step : steps) {
+                points.put(String.format("swipe_%s_%d", direction, step),
+                           new GestureTestParams(GestureType.UIOBJECT_SWIPE,
+                                                 Direction.valueOf(direction.toUpperCase()), step));
+            }
+        }
+        for (String pinch : parseList(parameters.getString("sweep_pinches"))) {
+            for (int step : steps) {
+                for (int percent : parseInts(parameters.getString("sweep_percents"))) {
+                    points.put(String.format("pinch_%s_%d_%d", pinch, step, percent),
+                               new GestureTestParams(GestureType.PINCH,
+                                                     PinchType.valueOf(pinch.toUpperCase()), step, percent));
+                }
+            }
+        }
+
+        FrameCapture capture = new FrameCapture(parameters.getString("package"));
+        long refreshPeriod = getRefreshPeriod();
+        BufferedWriter out = new BufferedWriter(new FileWriter(
+                new File(parameters.getString("output_dir"), testTag + "_sweep.log")));
+        try {
+            for (Map.Entry<String, GestureTestParams> point : points.entrySet()) {
+                GestureTestParams params = point.getValue();
+                if (reset != null) {
+                    reset.run();
+                    waitForQuiescence(SWEEP_SETTLE_MILLIS);
+                }
+                Rect bounds = target.getVisibleBounds();
+                double distance = (params.gestureType == GestureType.PINCH)
+                                ? bounds.height() / 2.0 * params.percent / 100 - PINCH_TOUCH_HALF_WIDTH
+                                : (params.gestureDirection == Direction.LEFT
+                                   || params.gestureDirection == Direction.RIGHT)
+                                  ? bounds.width() : bounds.height();
+
+                beginMeasuredSpan(testTag + "_" + point.getKey());
+                capture.start();
+                performGesture(target, params);
+                waitForQuiescence(SWEEP_SETTLE_MILLIS);
+                capture.stop();
+                endMeasuredSpan();
+
+                FrameClassifier frames = capture.classify(refreshPeriod);
+                List<Long> frameTimes = frames.getFrameTimes();
+                String prefix = point.getKey();
+                out.write(String.format("%s_velocity_px_s %d\n", prefix,
+                                        Math.round(distance * 1000 / (params.steps * SWIPE_STEP_MILLIS))));
+                out.write(String.format("%s_frames %d\n", prefix, frames.getFrameCount()));
+                out.write(String.format("%s_jank_pct %.2f\n", prefix, frames.getFrameCount() == 0
+                                        ? 0.0 : frames.getLateCount() * 100.0 / frames.getFrameCount()));
+                for (int percent : FRAME_TIME_PERCENTILES) {
+                    out.write(String.format("%s_frame_p%d_ms %.2f\n", prefix, percent,
+                                            frameTimes.isEmpty() ? -1.0 : percentile(frameTimes, percent) / 1e6));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static final double SCROLL_STROKE_FRACTION = 0.8;
+
+    public static class ScrollResult {
+        public Timer timer = new Timer();
+        public int frames;
+        public double fps;
+        public double jankPercent;
+        public double worstFrameMillis = -1;
+
+        public void writeResults(File file) throws IOException {
+            BufferedWriter out = new BufferedWriter(new FileWriter(file));
+            try {
+                out.write(String.format("scroll_duration_ms %d\n", timer.getDuration()));
+                out.write(String.format("frames %d\n", frames));
+                out.write(String.format("fps %.2f\n", fps));
+                out.write(String.format("jank_pct %.2f\n", jankPercent));
+                out.write(String.format("worst_frame_ms %.2f\n", worstFrameMillis));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /*
+     * Scrolls target vertically by distance pixels (positive to move
+     * further into the content, negative to move back) with the finger at
+     * velocity pixels per second, repetitions times, and reports the frames
+     * presented during the whole scroll including the fling that follows.
+     * The injection is the same for every app so that results can be
+     * compared: strokes through the centre of target of at most 80% of its
+     * height, each injected in 5 ms steps. testTag names the measured span.
+     *
+     * Where the list had stopped, e.g. at its end, the interval before the
+     * first frame after the next stroke starts is the wait for the finger
+     * rather than a late frame, so it is left out as an idle gap (see
+     * FrameClassifier).
+     */
+    public ScrollResult scrollBenchmark(String testTag, UiObject target, int distance, int velocity,
+                                        int repetitions) throws Exception {
+        if (velocity <= 0) {
+            throw new IllegalArgumentException("Scroll velocity must be positive: " + velocity);
+        }
+        Rect bounds = target.getVisibleBounds();
+        int maxStroke = Math.max((int) (bounds.height() * SCROLL_STROKE_FRACTION), 1);
+        int sign = (distance < 0) ? -1 : 1;
+        FrameCapture capture = new FrameCapture(target.getPackageName());
+        long refreshPeriod = getRefreshPeriod();
+        ScrollResult result = new ScrollResult();
+
+        beginMeasuredSpan(testTag);
+        capture.start();
+        result.timer.start();
+        for (int i = 0; i < repetitions; i++) {
+            for (int remaining = Math.abs(distance); remaining > 0; remaining -= maxStroke) {
+                int stroke = Math.min(remaining, maxStroke);
+                int steps = (int) Math.max(Math.round(stroke * 1000.0 / velocity / SWIPE_STEP_MILLIS), 1);
+                capture.markInput();
+                getUiDevice().swipe(bounds.centerX(), bounds.centerY() + sign * stroke / 2,
+                                    bounds.centerX(), bounds.centerY() - sign * stroke / 2, steps);
+            }
+        }
+        result.timer.end();
+        waitForQuiescence(SWEEP_SETTLE_MILLIS);
+        capture.stop();
+        endMeasuredSpan();
+
+        FrameClassifier frames = capture.classify(refreshPeriod);
+        result.frames = frames.getFrameCount();
+        result.fps = frames.getFps();
+        result.jankPercent = (result.frames == 0) ? 0 : frames.getLateCount() * 100.0 / result.frames;
+        if (frames.getWorstFrameTime() > 0) {
+            result.worstFrameMillis = frames.getWorstFrameTime() / 1e6;
+        }
+        return result;
+    }
+
+    public static final long KEY_RENDER_TIMEOUT_MILLIS = 1000;
+    public static final long KEY_POLL_MILLIS = 25;
+    public static final long KEY_FRAME_POLL_MILLIS = 50;
+    public static final int[] KEY_LATENCY_PERCENTILES = {50, 90, 99};
+
+    /*
+     * Types text into field one key event at a time, cadenceMillis apart,
+     * rather than setting it all at once as UiObject.setText() does. For
+     * every key the time from injecting it to the first frame the field's
+     * app presents after its text is seen to change is recorded under
+     * fieldName, see writeTypingResults(). Keys whose edit is not rendered
+     * within a second, and characters the virtual keyboard map cannot type,
+     * are counted as missed.
+     *
+     * The text is polled every KEY_POLL_MILLIS, so frames presented before
+     * the last poll that still saw the old text (e.g. the cursor blinking)
+     * are not taken for the edit; one presented between that poll and the
+     * edit could still be. Once the edit is seen the app's layer, looked up
+     * once per call, is read every KEY_FRAME_POLL_MILLIS until it has
+     * presented a frame, so that measuring adds little load of its own.
+     */
+    public void typeText(String fieldName, UiObject field, String text, long cadenceMillis) throws Exception {
+        KeyCharacterMap keyMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+        String appPackage = field.getPackageName();
+        String className = field.getClassName();
+        field.click();
+        // The field's own selector may match on its hint or content, which
+        // typing changes, so follow the focused field instead
+        UiObject focused = new UiObject(new UiSelector().className(className).focused(true));
+        String layer = getSurfaceFlingerView(appPackage);
+
+        List<Long> latencies = keyLatencies.get(fieldName);
+        if (latencies == null) {
+            latencies = new ArrayList<Long>();
+            keyLatencies.put(fieldName, latencies);
+            keysMissed.put(fieldName, 0);
+        }
+
+        beginMeasuredSpan("type_" + fieldName);
+        try {
+            for (char c : text.toCharArray()) {
+                KeyEvent[] events = keyMap.getEvents(new char[] {c});
+                if (events == null) {
+                    keysMissed.put(fieldName, keysMissed.get(fieldName) + 1);
+                    continue;
+                }
+                String before = focused.getText();
+                long keyTime = System.nanoTime();
+                for (KeyEvent event : events) {
+                    // Modifiers are applied through the meta state
+                    if (event.getAction() == KeyEvent.ACTION_DOWN && !KeyEvent.isModifierKey(event.getKeyCode())) {
+                        getUiDevice().pressKeyCode(event.getKeyCode(), event.getMetaState());
+                    }
+                }
+
+                long latency = waitForKeyRender(focused, before, layer, keyTime);
+                if (latency < 0) {
+                    keysMissed.put(fieldName, keysMissed.get(fieldName) + 1);
+                } else {
+                    latencies.add(latency);
+                }
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - keyTime);
+                SystemClock.sleep(Math.max(cadenceMillis - elapsed, 0));
+            }
+        } finally {
+            endMeasuredSpan();
+        }
+    }
+
+    // Returns ns from keyTime to the first frame presented after the last
+    // poll of the field that still found its text unchanged from before, or
+    // -1 if there was none within the timeout
+    private long waitForKeyRender(UiObject field, String before, String layer, long keyTime) throws Exception {
+        long deadline = keyTime + TimeUnit.MILLISECONDS.toNanos(KEY_RENDER_TIMEOUT_MILLIS);
+        long unchangedAt = keyTime;
+        boolean changed = false;
+        while (System.nanoTime() < deadline) {
+            if (!changed) {
+                long polled = System.nanoTime();
+                changed = !field.getText().equals(before);
+                if (!changed) {
+                    unchangedAt = polled;
+                }
+            }
+            if (changed && !layer.isEmpty()) {
+                long firstPresent = -1;
+                for (long[] frame : getLayerFrames(layer, unchangedAt)) {
+                    firstPresent = (firstPresent < 0) ? frame[1] : Math.min(firstPresent, frame[1]);
+                }
+                if (firstPresent >= 0) {
+                    return firstPresent - keyTime;
+                }
+            }
+            SystemClock.sleep(changed ? KEY_FRAME_POLL_MILLIS : KEY_POLL_MILLIS);
+        }
+        return -1;
+    }
+
+    public void writeTypingResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (Map.Entry<String, List<Long>> entry : keyLatencies.entrySet()) {
+                String field = entry.getKey();
+                List<Long> latencies = entry.getValue();
+                out.write(String.format("%s_keys %d\n", field, latencies.size()));
+                out.write(String.format("%s_keys_missed %d\n", field, keysMissed.get(field)));
+                for (int percent : KEY_LATENCY_PERCENTILES) {
+                    out.write(String.format("%s_key_latency_p%d_ms %.2f\n", field, percent,
+                                            latencies.isEmpty() ? -1.0 : percentile(latencies, percent) / 1e6));
+                }
+                out.write(String.format("%s_key_latency_max_ms %.2f\n", field,
+                                        latencies.isEmpty() ? -1.0 : Collections.max(latencies) / 1e6));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static final String IME_LAYER = "InputMethod";
+    public static final long IME_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final long IME_IDLE_MILLIS = 300;
+    public static final long IME_POLL_MILLIS = 20;
+
+    public static class KeyboardTransition {
+        public long latencyMillis = -1;
+        public FrameClassifier frames;
+    }
+
+    /*
+     * Measures the soft keyboard being shown when field is tapped and
+     * hidden again when it is dismissed with back. A transition is complete
+     * once the input method reports the keyboard shown (or hidden) and the
+     * keyboard's layer has stopped animating; its latency runs from the
+     * tap or back press to the last frame of that animation. Results, with
+     * the frame stats of each animation, are kept under fieldName, see
+     * writeKeyboardResults().
+     *
+     * If the keyboard is already up when this is called (e.g. the field was
+     * focused automatically) it is dismissed first, unmeasured.
+     */
+    public void measureKeyboard(String fieldName, UiObject field) throws Exception {
+        long refreshPeriod = getRefreshPeriod();
+        if (isKeyboardShown()) {
+            getUiDevice().pressBack();
+            waitForKeyboard(false, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IME_TIMEOUT_MILLIS));
+            waitForQuiescence(IME_TIMEOUT_MILLIS);
+        }
+
+        beginMeasuredSpan("keyboard_" + fieldName);
+        try {
+            long start = System.nanoTime();
+            field.click();
+            keyboardTransitions.put(fieldName + "_show", finishKeyboardTransition(true, start, refreshPeriod));
+
+            start = System.nanoTime();
+            getUiDevice().pressBack();
+            keyboardTransitions.put(fieldName + "_hide", finishKeyboardTransition(false, start, refreshPeriod));
+        } finally {
+            endMeasuredSpan();
+        }
+    }
+
+    private KeyboardTransition finishKeyboardTransition(boolean shown, long start, long refreshPeriod) {
+        KeyboardTransition transition = new KeyboardTransition();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(IME_TIMEOUT_MILLIS);
+        if (!waitForKeyboard(shown, deadline)) {
+            return transition;
+        }
+        long stateTime = System.nanoTime();
+
+        long[] presents = waitForFrameIdle(IME_LAYER, start, IME_IDLE_MILLIS, IME_TIMEOUT_MILLIS);
+        long end = (presents == null) ? stateTime : presents[1];
+        transition.latencyMillis = TimeUnit.NANOSECONDS.toMillis(end - start);
+        transition.frames = new FrameClassifier(refreshPeriod);
+        for (long[] frame : getPresentedFrames(IME_LAYER, start)) {
+            transition.frames.addFrame(frame[1]);
+        }
+        return transition;
+    }
+
+    private boolean waitForKeyboard(boolean shown, long deadline) {
+        while (isKeyboardShown() != shown) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            SystemClock.sleep(IME_POLL_MILLIS);
+        }
+        return true;
+    }
+
+    public boolean isKeyboardShown() {
+        Pair<Integer, String> result = executeCommand(Arrays.asList("dumpsys", "input_method"), true);
+        return result.second.contains("mInputShown=true");
+    }
+
+    public void writeKeyboardResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (Map.Entry<String, KeyboardTransition> entry : keyboardTransitions.entrySet()) {
+                KeyboardTransition transition = entry.getValue();
+                String prefix = entry.getKey();
+                out.write(String.format("%s_ms %d\n", prefix, transition.latencyMillis));
+                if (transition.frames != null) {
+                    transition.frames.writeResults(out, prefix + "_");
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> parseList(String value) {
+        List<String> result = new ArrayList<String>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (item.trim().length() > 0) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<Integer> parseInts(String value) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (String item : parseList(value)) {
+            result.add(Integer.parseInt(item));
+        }
+        return result;
+    }
+
+    public void performGesture(UiObject view, GestureTestParams params) throws Exception {
+        switch (params.gestureType) {
+            case UIDEVICE_SWIPE:
+                uiDeviceSwipe(params.gestureDirection, params.steps);
+                break;
+            case UIOBJECT_SWIPE:
+                uiObjectSwipe(view, params.gestureDirection, params.steps);
+                break;
+            case PINCH:
+                uiObjectVertPinch(view, params.pinchType, params.steps, params.percent);
+                break;
+            default:
+                break;
+        }
+    }
+
     public void writeResultsToFile(Map<String, Timer> results, String file) throws Exception {
         // Write out the key/value pairs to the instrumentation log file
         BufferedWriter out = new BufferedWriter(new FileWriter(file));
@@ -0,0 +1,327 @@
+/*    Copyright 2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.arm.wlauto.uiauto;
+
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiSelector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Detects the app under test hanging, crashing or showing an ANR dialog so
+ * that the automation can fail straight away instead of waiting out its
+ * timeouts.
+ *
+ * A background thread polls the app's pid and how long the oldest input
+ * event sent to its windows has gone unanswered, from the input
+ * dispatcher's queues; an app that is merely slow to show a view keeps
+ * handling input, one whose main thread is stuck does not. Polling is
+ * paused while measured actions run so that it does not load them. The
+ * automation calls check() between slices of its waits, which looks for
+ * the system's crash and ANR dialogs (UiAutomator queries are left to the
+ * test thread) and throws an AppFailureException, carrying a logcat
+ * excerpt, if any of these have been seen.
+ */
+public class Watchdog extends Thread {
+
+    public enum Failure { HANG, CRASH, ANR };
+
+    public static final long POLL_MILLIS = 1000;
+    public static final long SLICE_MILLIS = 1000;
+    public static final int LOGCAT_EXCERPT_LINES = 50;
+
+    private static final String ANR_PATTERN = "(?s).*(isn't responding|is not responding).*";
+    private static final String CRASH_PATTERN = "(?s).*(has stopped|keeps stopping).*";
+    private static final String TRACES_FILE = "/data/anr/traces.txt";
+    // The dialog's message before N, its title since
+    private static final String DIALOG_TEXT_ID = "android:id/(message|alertTitle)";
+    // Queued input events are dumped with the time since they were enqueued
+    private static final Pattern INPUT_AGE_PATTERN = Pattern.compile("\\bage=([\\d.]+)ms");
+
+    public static class AppFailureException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Failure failure;
+        private String excerpt;
+
+        public AppFailureException(Failure failure, String detail, String excerpt) {
+            super(String.format("App %s: %s\n%s", failure.name().toLowerCase(), detail, excerpt));
+            this.failure = failure;
+            this.excerpt = excerpt;
+        }
+
+        public Failure getFailure() {
+            return failure;
+        }
+
+        public String getExcerpt() {
+            return excerpt;
+        }
+    }
+
+    private BaseUiAutomation host;
+    private String appPackage;
+    private long stallMillis;
+    private volatile boolean running = true;
+    private volatile boolean paused = false;
+
+    private volatile int pid = -1;
+    private volatile boolean expectingRestart = false;
+    private volatile long pendingInputMillis = -1;
+    private volatile String crashDetail = null;
+
+    private UiObject anrDialog = new UiObject(new UiSelector().packageName("android")
+                                                                .resourceIdMatches(DIALOG_TEXT_ID)
+                                                                .textMatches(ANR_PATTERN));
+    private UiObject crashDialog = new UiObject(new UiSelector().packageName("android")
+                                                                  .resourceIdMatches(DIALOG_TEXT_ID)
+                                                                  .textMatches(CRASH_PATTERN));
+    private AppFailureException lastFailure = null;
+
+    public Watchdog(BaseUiAutomation host, String appPackage, long stallMillis) {
+        super("Watchdog");
+        setDaemon(true);
+        this.host = host;
+        this.appPackage = appPackage;
+        this.stallMillis = stallMillis;
+        this.expectingRestart = true;  // adopt whichever process is running first
+    }
+
+    public void run() {
+        int missing = 0;
+        while (running) {
+            if (appPackage != null && !paused) {
+                int current;
+                try {
+                    current = host.getAppPid(appPackage);
+                    pendingInputMillis = getPendingInputMillis();
+                } catch (RuntimeException e) {
+                    // Unexpected ps or dumpsys output, try again next poll
+                    current = pid;
+                }
+                if (expectingRestart) {
+                    if (current > 0) {
+                        pid = current;
+                        expectingRestart = false;
+                    }
+                } else if (current != pid) {
+                    // Require two polls in a row to ride out a slow ps
+                    if (++missing >= 2 && crashDetail == null) {
+                        crashDetail = (current > 0)
+                                    ? String.format("process restarted (pid %d -> %d)", pid, current)
+                                    : String.format("process %d died", pid);
+                    }
+                } else {
+                    missing = 0;
+                }
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    public void finish() {
+        running = false;
+        interrupt();
+    }
+
+    // Stops polling until resumePolling(), e.g. while a measured action runs
+    public void pausePolling() {
+        paused = true;
+        pendingInputMillis = -1;
+    }
+
+    public void resumePolling() {
+        paused = false;
+    }
+
+    // To be called before the app is deliberately stopped or relaunched
+    public void expectRestart() {
+        expectingRestart = true;
+        crashDetail = null;
+    }
+
+    /*
+     * Throws if the app has failed. waitStart is the System.nanoTime() at
+     * which the current wait for the UI began, or -1 if the caller is not
+     * waiting for the UI to change (e.g. a plain sleep), in which case the
+     * app leaving input unanswered does not count as a hang.
+     */
+    public void check(long waitStart) {
+        if (crashDetail != null) {
+            String detail = crashDetail;
+            expectRestart();
+            fail(Failure.CRASH, detail);
+        }
+        if (anrDialog.exists()) {
+            fail(Failure.ANR, "application not responding dialog shown");
+        }
+        if (crashDialog.exists()) {
+            expectRestart();
+            fail(Failure.CRASH, "crash dialog shown");
+        }
+        long pending = pendingInputMillis;
+        if (waitStart >= 0 && pending > stallMillis) {
+            fail(Failure.HANG, String.format("input event unanswered for %d s",
+                                             TimeUnit.MILLISECONDS.toSeconds(pending)));
+        }
+    }
+
+    public AppFailureException getLastFailure() {
+        return lastFailure;
+    }
+
+    public void writeResults(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            if (lastFailure == null) {
+                out.write("failure none\n");
+            } else {
+                out.write(String.format("failure %s\n", lastFailure.getFailure().name().toLowerCase()));
+                out.write(lastFailure.getMessage());
+                out.write("\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void fail(Failure failure, String detail) {
+        StringBuilder excerpt = new StringBuilder(getLogcatExcerpt());
+        if (failure == Failure.ANR) {
+            excerpt.append(getTracesExcerpt());
+        }
+        lastFailure = new AppFailureException(failure, detail, excerpt.toString());
+        throw lastFailure;
+    }
+
+    /*
+     * How long (ms) the oldest input event queued for, or sent to and not
+     * yet finished by, one of the app's windows has been waiting, or -1 if
+     * there is none. Connections are dumped one per input channel, with
+     * their queued events indented below them.
+     */
+    private long getPendingInputMillis() {
+        long oldest = -1;
+        BufferedReader reader = null;
+        try {
+            Process process = Runtime.getRuntime().exec(new String[] {"dumpsys", "input"});
+            reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            int connectionIndent = -1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int indent = getIndent(line);
+                if (line.contains("channelName=")) {
+                    connectionIndent = line.contains(appPackage) ? indent : -1;
+                } else if (connectionIndent >= 0 && indent <= connectionIndent) {
+                    connectionIndent = -1;
+                } else if (connectionIndent >= 0) {
+                    Matcher matcher = INPUT_AGE_PATTERN.matcher(line);
+                    if (matcher.find()) {
+                        oldest = Math.max(oldest, (long) Double.parseDouble(matcher.group(1)));
+                    }
+                }
+            }
+            process.waitFor();
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            closeQuietly(reader);
+        }
+        return oldest;
+    }
+
+    private static int getIndent(String line) {
+        int indent = 0;
+        while (indent < line.length() && Character.isWhitespace(line.charAt(indent))) {
+            indent++;
+        }
+        return indent;
+    }
+
+    // The most recent logcat lines mentioning the app, crashes or ANRs
+    private String getLogcatExcerpt() {
+        LinkedList<String> lines = new LinkedList<String>();
+        BufferedReader reader = null;
+        try {
+            Process process = Runtime.getRuntime().exec(new String[] {"logcat", "-d", "-v", "time"});
+            reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String pidTag = String.format("(%5d)", pid);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if ((appPackage != null && line.contains(appPackage)) || line.contains(pidTag)
+                        || line.contains("AndroidRuntime") || line.contains("ANR in")) {
+                    lines.add(line);
+                    if (lines.size() > LOGCAT_EXCERPT_LINES) {
+                        lines.removeFirst();
+                    }
+                }
+            }
+            process.waitFor();
+        } catch (Exception e) {
+            return "Unable to read logcat: " + e + "\n";
+        } finally {
+            closeQuietly(reader);
+        }
+
+        StringBuilder excerpt = new StringBuilder();
+        for (String line : lines) {
+            excerpt.append(line).append('\n');
+        }
+        return excerpt.toString();
+    }
+
+    // The start of the ANR traces, which begins with the main thread
+    private String getTracesExcerpt() {
+        StringBuilder excerpt = new StringBuilder();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(TRACES_FILE));
+            String line;
+            for (int i = 0; i < LOGCAT_EXCERPT_LINES && (line = reader.readLine()) != null; i++) {
+                excerpt.append(line).append('\n');
+            }
+        } catch (IOException e) {
+            // traces.txt is not readable without root on most releases
+        } finally {
+            closeQuietly(reader);
+        }
+        return excerpt.toString();
+    }
+
+    private static void closeQuietly(BufferedReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
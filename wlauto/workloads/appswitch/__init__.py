@@ -0,0 +1,145 @@
+#    Copyright 2014-2016 ARM Limited
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+import os
+import re
+import shutil
+import tempfile
+
+from wlauto import UiAutomatorWorkload, Parameter
+from wlauto.exceptions import ConfigError, WorkloadError
+from wlauto.utils.android import ApkInfo
+from wlauto.utils.types import list_of_strs
+
+__version__ = '0.1.0'
+
+
+class Appswitch(UiAutomatorWorkload):
+
+    name = 'appswitch'
+    description = """
+    Measures how quickly the device switches between a set of apps that are
+    already installed, and how often an app has been killed in the background
+    by the time it is switched back to.
+
+    Test description:
+    1. Every app in ``packages`` is started once from its launcher intent so
+       that each has a task in recents.
+    2. For each cycle and each switch method, the apps are switched to in
+       turn, so that every switch goes to the least recently used app:
+       - A. recents - the recents screen is opened and the app's card tapped.
+            The time until the recents animation has finished and its frames
+            are recorded as well.
+       - B. intent - the app's launcher intent is sent, as tapping its icon
+            in the launcher would.
+    3. For each switch the time from the tap (or intent) to the first frame
+       presented by the app, and the frames it presents until it settles, are
+       recorded along with whether the app's process was still running.
+
+    Results are written to ``appswitch.log``: latency percentiles, frame
+    counts and jank per app and switch method, and per switch method for apps
+    that were resumed warm and apps that had been killed. ``killed_pct`` is
+    the percentage of switches to an app that had been killed, which rises
+    with the memory pressure of the app set.
+    """
+
+    parameters = [
+        Parameter('packages', kind=list_of_strs, mandatory=True,
+                  description="""
+                  Packages of the installed apps to switch between. At least two
+                  are needed.
+                  """),
+        Parameter('labels', kind=list_of_strs, default=None,
+                  description="""
+                  Labels of the apps in ``packages``, in the same order, as shown
+                  on their cards in recents. If not given they are read from the
+                  installed APKs, which requires ``aapt`` on the host.
+                  """),
+        Parameter('switch_methods', kind=list_of_strs, default=['recents', 'intent'],
+                  allowed_values=['recents', 'intent'],
+                  description="""
+                  How to switch to each app: by tapping its card in recents and/or
+                  by sending its launcher intent.
+                  """),
+        Parameter('cycles', kind=int, default=3,
+                  description="""
+                  Number of times to go through the whole app set with each
+                  switch method.
+                  """),
+    ]
+
+    results_log = '{}.log'.format(name)
+
+    def validate(self):
+        super(Appswitch, self).validate()
+        if len(self.packages) < 2:
+            raise ConfigError('At least two packages are needed to switch between.')
+        if self.labels and len(self.labels) != len(self.packages):
+            raise ConfigError('A label must be given for each package.')
+        self.uiauto_params['packages'] = ','.join(self.packages)
+        self.uiauto_params['switch_methods'] = ','.join(self.switch_methods)
+        self.uiauto_params['cycles'] = self.cycles
+        self.uiauto_params['output_dir'] = self.device.working_directory
+        switches = self.cycles * len(self.packages) * len(self.switch_methods)
+        self.run_timeout += switches * 30
+
+    def initialize(self, context):
+        super(Appswitch, self).initialize(context)
+        for package in self.packages:
+            if not self.device.package_is_installed(package):
+                raise WorkloadError('Package {} is not installed on the device'.format(package))
+        if not self.labels:
+            self.labels = [self._get_label(package) for package in self.packages]
+
+    def setup(self, context):
+        # Spaces cannot be passed through the uiautomator command line
+        self.uiauto_params['labels'] = ','.join(l.replace(' ', '_') for l in self.labels)
+        super(Appswitch, self).setup(context)
+
+    def update_result(self, context):
+        super(Appswitch, self).update_result(context)
+        device_file = os.path.join(self.device.working_directory, self.results_log)
+        if not self.device.file_exists(device_file):
+            raise WorkloadError('{} was not written by the workload'.format(self.results_log))
+        self.device.pull_file(device_file, context.output_directory)
+        self.device.delete_file(device_file)
+
+        regex = re.compile(r'^(?P<key>\w+)\s+(?P<value>-?[\d.]+)$')
+        with open(os.path.join(context.output_directory, self.results_log)) as fh:
+            for line in fh:
+                match = regex.search(line.strip())
+                if not match:
+                    continue
+                key = match.group('key')
+                if key.endswith('_ms'):
+                    units = 'ms'
+                elif key.endswith('_pct'):
+                    units = '%'
+                else:
+                    units = None
+                context.result.add_metric(key, float(match.group('value')), units)
+
+    def _get_label(self, package):
+        apk_path = self.device.execute('pm path {}'.format(package)).strip().split('\n')[0]
+        apk_path = apk_path.replace('package:', '').strip()
+        host_dir = tempfile.mkdtemp()
+        try:
+            self.device.pull_file(apk_path, host_dir)
+            label = ApkInfo(os.path.join(host_dir, os.path.basename(apk_path))).label
+        finally:
+            shutil.rmtree(host_dir)
+        if not label:
+            raise WorkloadError('Could not read the label of {}, set the labels parameter'.format(package))
+        return label
@@ -0,0 +1,344 @@
+/*    Copyright 2014-2016 ARM Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.arm.wlauto.uiauto.appswitch;
+
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Pair;
+
+// Import the uiautomator libraries
+import com.android.uiautomator.core.UiObject;
+import com.android.uiautomator.core.UiObjectNotFoundException;
+import com.android.uiautomator.core.UiScrollable;
+import com.android.uiautomator.core.UiSelector;
+
+import com.arm.wlauto.uiauto.FrameClassifier;
+import com.arm.wlauto.uiauto.OverheadAccounting.Category;
+import com.arm.wlauto.uiauto.UxPerfUiAutomation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class UiAutomation extends UxPerfUiAutomation {
+
+    public static String TAG = "uxperf_appswitch";
+
+    public enum SwitchMethod { RECENTS, INTENT };
+
+    public static final String RESULTS_LOG = "appswitch.log";
+    public static final long SWITCH_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final long SWITCH_IDLE_MILLIS = 500;
+    public static final int RECENTS_SCROLL_MAX = 5;
+    public static final int[] SWITCH_PERCENTILES = {50, 90, 99};
+    public static final long SWITCH_POLL_MILLIS = 100;
+    // Windows drawn by the system in place of the app until it draws
+    public static final String[] STARTING_WINDOW_PREFIXES = {"Starting ", "Splash Screen ", "SnapshotStartingWindow"};
+
+    private class SwitchStats {
+        int switches = 0;
+        int killed = 0;
+        List<Long> latencies = new ArrayList<Long>();
+        FrameClassifier frames = new FrameClassifier(refreshPeriod);
+    }
+
+    public Bundle parameters;
+    private long refreshPeriod;
+
+    // Keyed by <app>_<method>
+    private Map<String, SwitchStats> appStats = new LinkedHashMap<String, SwitchStats>();
+    // Keyed by <method>_warm and <method>_killed
+    private Map<String, SwitchStats> stateStats = new LinkedHashMap<String, SwitchStats>();
+    private List<Long> recentsLatencies = new ArrayList<Long>();
+    private FrameClassifier recentsFrames;
+    private int switches = 0;
+    private int missed = 0;
+
+    public void runUiAutomation() throws Exception {
+        parameters = getParams();
+        refreshPeriod = getRefreshPeriod();
+        recentsFrames = new FrameClassifier(refreshPeriod);
+
+        List<String> packages = Arrays.asList(parameters.getString("packages").split(","));
+        // Spaces cannot be passed through the uiautomator command line
+        List<String> labels = Arrays.asList(parameters.getString("labels").replace('_', ' ').split(","));
+        int cycles = Integer.parseInt(parameters.getString("cycles"));
+        List<SwitchMethod> methods = new ArrayList<SwitchMethod>();
+        for (String method : parameters.getString("switch_methods").split(",")) {
+            methods.add(SwitchMethod.valueOf(method.trim().toUpperCase()));
+        }
+
+        setScreenOrientation(ScreenOrientation.NATURAL);
+
+        // Start every app once so that all of them have a task in recents
+        for (String appPackage : packages) {
+            launchApp(appPackage);
+            waitForQuiescence(SWITCH_TIMEOUT_MILLIS, SWITCH_IDLE_MILLIS);
+        }
+
+        // Each switch goes to the least recently used app of the set, which
+        // is the one most likely to have been killed in the meantime
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            for (SwitchMethod method : methods) {
+                for (int i = 0; i < packages.size(); i++) {
+                    switchTo(packages.get(i), labels.get(i), method);
+                }
+            }
+        }
+
+        writeResults(new File(parameters.getString("output_dir"), RESULTS_LOG));
+        getUiDevice().pressHome();
+        unsetScreenOrientation();
+    }
+
+    // Frames presented by an app across all of its layers
+    private static class AppFrames {
+        long firstPresent = -1;
+        long lastPresent = -1;
+        // Those of the layer that presented the most, for jank
+        List<long[]> frames = new ArrayList<long[]>();
+    }
+
+    /*
+     * Brings appPackage to the foreground and records the time from the tap
+     * (or intent) to the first frame the app presents on any of its layers,
+     * the frames it presents until it settles, and whether its process was
+     * still alive. A killed app's starting window is not counted, only
+     * frames from the app's own layers.
+     */
+    private void switchTo(String appPackage, String label, SwitchMethod method) throws Exception {
+        String name = method.name().toLowerCase();
+        boolean warm = getPid(appPackage) > 0;
+
+        long start;
+        if (method == SwitchMethod.RECENTS) {
+            openRecents();
+            Rect card = findRecentsCard(label);
+            if (card == null) {
+                throw new UiObjectNotFoundException("Could not find \"" + label + "\" in recents");
+            }
+            beginMeasuredSpan("switch_" + name);
+            start = System.nanoTime();
+            getUiDevice().click(card.centerX(), card.centerY());
+        } else {
+            beginMeasuredSpan("switch_" + name);
+            start = System.nanoTime();
+            launchApp(appPackage);
+        }
+        AppFrames presented = waitForAppFrames(appPackage, start);
+        endMeasuredSpan();
+
+        switches++;
+        if (presented.firstPresent < 0) {
+            missed++;
+        }
+        record(appStats, appPackage.replace('.', '_') + "_" + name, warm, presented, start);
+        record(stateStats, name + (warm ? "_warm" : "_killed"), warm, presented, start);
+    }
+
+    /*
+     * Polls every layer of appPackage other than its starting window until
+     * none of them has presented a frame for SWITCH_IDLE_MILLIS, or
+     * SWITCH_TIMEOUT_MILLIS has elapsed. The layers are listed again on
+     * each poll, as a killed app's only appear once it has restarted.
+     */
+    private AppFrames waitForAppFrames(String appPackage, long start) {
+        AppFrames presented = new AppFrames();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(SWITCH_TIMEOUT_MILLIS);
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(SWITCH_IDLE_MILLIS);
+        while (System.nanoTime() < deadline) {
+            for (String layer : getSurfaceFlingerViews(appPackage)) {
+                if (isStartingWindow(layer)) {
+                    continue;
+                }
+                List<long[]> frames = getLayerFrames(layer, start);
+                for (long[] frame : frames) {
+                    if (presented.firstPresent < 0 || frame[1] < presented.firstPresent) {
+                        presented.firstPresent = frame[1];
+                    }
+                    presented.lastPresent = Math.max(presented.lastPresent, frame[1]);
+                }
+                if (frames.size() > presented.frames.size()) {
+                    presented.frames = frames;
+                }
+            }
+            if (presented.lastPresent >= 0 && System.nanoTime() - presented.lastPresent >= idleNanos) {
+                break;
+            }
+            SystemClock.sleep(SWITCH_POLL_MILLIS);
+        }
+        return presented;
+    }
+
+    private static boolean isStartingWindow(String layer) {
+        for (String prefix : STARTING_WINDOW_PREFIXES) {
+            if (layer.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void record(Map<String, SwitchStats> stats, String key, boolean warm,
+                        AppFrames presented, long start) {
+        SwitchStats entry = stats.get(key);
+        if (entry == null) {
+            entry = new SwitchStats();
+            stats.put(key, entry);
+        }
+        entry.switches++;
+        if (!warm) {
+            entry.killed++;
+        }
+        if (presented.firstPresent >= 0) {
+            entry.latencies.add(presented.firstPresent - start);
+        }
+        entry.frames.addInput(start);
+        for (long[] frame : presented.frames) {
+            entry.frames.addFrame(frame[1]);
+        }
+    }
+
+    // Opens the recents screen and records the frames of its animation
+    private void openRecents() throws Exception {
+        String previous = getUiDevice().getCurrentPackageName();
+        long start = System.nanoTime();
+        getUiDevice().pressRecentApps();
+
+        // Recents belongs to the launcher on newer releases, SystemUI before
+        long deadline = SystemClock.uptimeMillis() + SWITCH_TIMEOUT_MILLIS;
+        while (previous != null && previous.equals(getUiDevice().getCurrentPackageName())
+                && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(50);
+        }
+        String recentsPackage = getUiDevice().getCurrentPackageName();
+        waitForQuiescence(SWITCH_TIMEOUT_MILLIS, SWITCH_IDLE_MILLIS);
+
+        long lastPresent = -1;
+        recentsFrames.addInput(start);
+        for (long[] frame : getPresentedFrames(recentsPackage, start)) {
+            recentsFrames.addFrame(frame[1]);
+            lastPresent = Math.max(lastPresent, frame[1]);
+        }
+        if (lastPresent >= 0) {
+            recentsLatencies.add(lastPresent - start);
+        }
+    }
+
+    /*
+     * Returns the bounds of the app's task in recents, scrolling the list
+     * if need be, or null if it cannot be found. The task's thumbnail,
+     * title and icon may all carry the app's label, so the largest of them
+     * is taken to be the card; on some releases tapping the icon opens a
+     * menu rather than the task.
+     */
+    private Rect findRecentsCard(String label) throws Exception {
+        Rect card = findLargest(label);
+        if (card != null) {
+            return card;
+        }
+        UiScrollable list = new UiScrollable(new UiSelector().scrollable(true));
+        if (!list.exists()) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= 28) {
+            list.setAsHorizontalList();
+        }
+        // Older tasks are further back in the list
+        for (int i = 0; i < RECENTS_SCROLL_MAX && card == null && list.scrollBackward(); i++) {
+            card = findLargest(label);
+        }
+        for (int i = 0; i < RECENTS_SCROLL_MAX * 2 && card == null && list.scrollForward(); i++) {
+            card = findLargest(label);
+        }
+        return card;
+    }
+
+    private Rect findLargest(String label) throws Exception {
+        Rect largest = null;
+        UiSelector[] selectors = {new UiSelector().description(label), new UiSelector().text(label)};
+        for (UiSelector selector : selectors) {
+            for (int i = 0; ; i++) {
+                UiObject match = new UiObject(selector.instance(i));
+                if (!match.exists()) {
+                    break;
+                }
+                Rect bounds = match.getVisibleBounds();
+                if (largest == null
+                        || bounds.width() * bounds.height() > largest.width() * largest.height()) {
+                    largest = bounds;
+                }
+            }
+        }
+        return largest;
+    }
+
+    // Starts the package's launcher activity as the launcher would
+    private void launchApp(String appPackage) throws Exception {
+        Pair<Integer, String> result = executeCommand(Arrays.asList(
+                "am", "start", "-a", "android.intent.action.MAIN",
+                "-c", "android.intent.category.LAUNCHER", appPackage), true, Category.COMMAND);
+        if (result.first != 0 || result.second.contains("Error")) {
+            throw new Exception("Unable to launch " + appPackage + ": " + result.second);
+        }
+    }
+
+    private void writeResults(File file) throws Exception {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            int totalKilled = 0;
+            out.write(String.format("switches %d\n", switches));
+            out.write(String.format("switches_missed %d\n", missed));
+            for (Map.Entry<String, SwitchStats> entry : appStats.entrySet()) {
+                writeStats(out, entry.getKey(), entry.getValue());
+                out.write(String.format("%s_killed %d\n", entry.getKey(), entry.getValue().killed));
+                totalKilled += entry.getValue().killed;
+            }
+            for (Map.Entry<String, SwitchStats> entry : stateStats.entrySet()) {
+                writeStats(out, entry.getKey(), entry.getValue());
+            }
+            out.write(String.format("killed_pct %.2f\n", switches == 0 ? 0.0 : totalKilled * 100.0 / switches));
+            for (int percent : SWITCH_PERCENTILES) {
+                out.write(String.format("recents_latency_p%d_ms %.2f\n", percent, recentsLatencies.isEmpty()
+                                        ? -1.0 : percentile(recentsLatencies, percent) / 1e6));
+            }
+            out.write(String.format("recents_frames %d\n", recentsFrames.getFrameCount()));
+            out.write(String.format("recents_jank_pct %.2f\n", recentsFrames.getFrameCount() == 0
+                                    ? 0.0 : recentsFrames.getLateCount() * 100.0 / recentsFrames.getFrameCount()));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeStats(BufferedWriter out, String key, SwitchStats stats) throws Exception {
+        out.write(String.format("%s_switches %d\n", key, stats.switches));
+        for (int percent : SWITCH_PERCENTILES) {
+            out.write(String.format("%s_latency_p%d_ms %.2f\n", key, percent, stats.latencies.isEmpty()
+                                    ? -1.0 : percentile(stats.latencies, percent) / 1e6));
+        }
+        out.write(String.format("%s_frames %d\n", key, stats.frames.getFrameCount()));
+        out.write(String.format("%s_jank_pct %.2f\n", key, stats.frames.getFrameCount() == 0
+                                ? 0.0 : stats.frames.getLateCount() * 100.0 / stats.frames.getFrameCount()));
+    }
+}
@@ -62,6 +62,16 @@ class Gmail(AndroidUiAutoBenchmark):
                   test run.  The output is piped to log files which are then
                   pulled from the phone.
                   """),
+        Parameter('typing_cadence_ms', kind=int, default=None,
+                  description="""
+                  If set, the subject and body are typed one key at a time with
+                  this interval between keys, instead of being set at once, and the
+                  latency from each key to the edit being rendered is measured.
+                  Latency percentiles for each field are written to
+                  ``gmail_typing.log``, and the ``Create_Subject`` and
+                  ``Create_Compose`` timings, which would measure the cadence,
+                  are not reported.
+                  """),
     ]
 
     instrumentation_log = ''.join([name, '_instrumentation.log'])
@@ -77,6 +87,8 @@ class Gmail(AndroidUiAutoBenchmark):
         self.uiauto_params['output_dir'] = self.device.working_directory
         self.uiauto_params['output_file'] = self.output_file
         self.uiauto_params['dumpsys_enabled'] = self.dumpsys_enabled
+        if self.typing_cadence_ms:
+            self.uiauto_params['typing_cadence_ms'] = self.typing_cadence_ms
 
     def initialize(self, context):
         super(Gmail, self).initialize(context)
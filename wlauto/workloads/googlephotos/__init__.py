@@ -19,6 +19,7 @@ import re
 from wlauto import AndroidUiAutoBenchmark, Parameter
 from wlauto.exceptions import DeviceError
 from wlauto.exceptions import NotFoundError
+from wlauto.utils.types import list_of_strs, list_of_ints
 
 __version__ = '0.1.0'
 
@@ -63,6 +64,99 @@ class Googlephotos(AndroidUiAutoBenchmark):
                   test run.  The output is piped to log files which are then
                   pulled from the phone.
                   """),
+        Parameter('launch_type', kind=str, default=None,
+                  allowed_values=['cold', 'warm', 'hot'],
+                  description="""
+                  If set, the app is relaunched from the given state at the start
+                  of the run and its launch is measured (activity manager
+                  ThisTime/TotalTime/WaitTime, time to first frame and time until
+                  the app stops drawing). Results are written to ``app_launch.log``
+                  and the launch duration is reported as ``launch_<type>``.
+                  """),
+        Parameter('launch_drop_caches', kind=bool, default=False,
+                  description="""
+                  If ``True``, the page cache is dropped before a cold launch.
+                  This requires a rooted device.
+                  """),
+        Parameter('tti_enabled', kind=bool, default=False,
+                  description="""
+                  If ``True`` (and ``launch_type`` is set), the time until the app
+                  first responds to input after launch is also measured and
+                  written to ``app_launch.log``.
+                  """),
+        Parameter('trace_export_enabled', kind=bool, default=False,
+                  description="""
+                  If ``True``, all measured actions, frame times and periodic
+                  CPU frequency, memory and thermal samples are written to
+                  ``trace_events.json`` in Chrome trace-event format, which can
+                  be opened in chrome://tracing or the Perfetto UI.
+                  """),
+        Parameter('span_trace_enabled', kind=bool, default=False,
+                  description="""
+                  If ``True``, atrace categories given by ``span_trace_categories``
+                  are enabled only while each measured action is running, and the
+                  trace is summarised on the device into a ``*_traceSummary.log``
+                  file per action (main thread scheduling latency, longest
+                  RenderThread slices and binder calls).
+                  """),
+        Parameter('span_trace_categories', kind=list_of_strs,
+                  default=['sched', 'gfx', 'view', 'binder_driver'],
+                  description="""
+                  atrace categories to enable during each measured action.
+                  """),
+        Parameter('span_trace_keep_raw', kind=bool, default=False,
+                  description="""
+                  If ``True``, the raw trace for each measured action is kept
+                  alongside its summary as ``*_atrace.log``.
+                  """),
+        Parameter('step_retries', kind=int, default=1,
+                  description="""
+                  Number of times a failed test step is retried, after returning
+                  the app to the gallery by back navigation or by relaunching it,
+                  before the run is aborted. Step outcomes are written to
+                  ``steps.log``.
+                  """),
+        Parameter('sustained_duration_secs', kind=int, default=None,
+                  description="""
+                  If set, the gesture tests are looped for this many seconds
+                  instead of run once, and the duration, FPS, 90th percentile
+                  frame time, jank, CPU frequency and temperature of every loop
+                  are written to ``gestures_sustained.log`` along with the
+                  sustained/peak performance ratio (of the best loop's frame time
+                  to that of the last third of the loops) and the time until the
+                  CPUs were first throttled.
+                  """),
+        Parameter('sweep_steps', kind=list_of_ints, default=None,
+                  description="""
+                  If set, after the gesture tests a sweep of swipes and pinches is
+                  run on the photo for each of these step counts (a step takes
+                  5 ms, so fewer steps make a faster gesture). The photo is
+                  reopened, unzoomed, before every gesture. The velocity and
+                  frame time percentiles of every combination are written to
+                  ``gestures_sweep.log``.
+                  """),
+        Parameter('sweep_directions', kind=list_of_strs, default=['left', 'right'],
+                  description="""
+                  Swipe directions included in the gesture sweep.
+                  """),
+        Parameter('sweep_pinches', kind=list_of_strs, default=['out', 'in'],
+                  description="""
+                  Pinch types included in the gesture sweep.
+                  """),
+        Parameter('sweep_percents', kind=list_of_ints, default=[25, 50, 75],
+                  description="""
+                  Pinch sizes, as a percentage of the photo, included in the
+                  gesture sweep.
+                  """),
+        Parameter('rotation_repetitions', kind=int, default=None,
+                  description="""
+                  If set, after the gesture tests the display is rotated from
+                  natural to left, natural, right and natural again this many
+                  times with the photo open. The time until the app presented
+                  its first stable frame after each rotation, as percentiles,
+                  and the jank during the rotations are written to
+                  ``gestures_rotation.log``.
+                  """),
     ]
 
     instrumentation_log = ''.join([name, '_instrumentation.log'])
@@ -77,6 +171,31 @@ class Googlephotos(AndroidUiAutoBenchmark):
         self.uiauto_params['output_dir'] = self.device.working_directory
         self.uiauto_params['output_file'] = self.output_file
         self.uiauto_params['dumpsys_enabled'] = self.dumpsys_enabled
+        if self.launch_type:
+            self.uiauto_params['launch_type'] = self.launch_type
+            self.uiauto_params['launch_activity'] = self.activity
+            self.uiauto_params['launch_drop_caches'] = self.launch_drop_caches
+            self.uiauto_params['tti_enabled'] = self.tti_enabled
+        self.uiauto_params['trace_export_enabled'] = self.trace_export_enabled
+        self.uiauto_params['span_trace_enabled'] = self.span_trace_enabled
+        self.uiauto_params['span_trace_categories'] = ','.join(self.span_trace_categories)
+        self.uiauto_params['span_trace_keep_raw'] = self.span_trace_keep_raw
+        self.uiauto_params['step_retries'] = self.step_retries
+        if self.sustained_duration_secs:
+            self.uiauto_params['sustained_duration_secs'] = self.sustained_duration_secs
+            self.run_timeout += self.sustained_duration_secs
+        if self.sweep_steps:
+            self.uiauto_params['sweep_steps'] = ','.join(str(s) for s in self.sweep_steps)
+            self.uiauto_params['sweep_directions'] = ','.join(self.sweep_directions)
+            self.uiauto_params['sweep_pinches'] = ','.join(self.sweep_pinches)
+            self.uiauto_params['sweep_percents'] = ','.join(str(p) for p in self.sweep_percents)
+            points = len(self.sweep_steps) * (len(self.sweep_directions) +
+                                              len(self.sweep_pinches) * len(self.sweep_percents))
+            # Each point reopens the photo and waits for it to settle
+            self.run_timeout += points * 10
+        if self.rotation_repetitions:
+            self.uiauto_params['rotation_repetitions'] = self.rotation_repetitions
+            self.run_timeout += self.rotation_repetitions * 4 * 10
 
     def initialize(self, context):
         super(Googlephotos, self).initialize(context)
@@ -125,7 +244,7 @@ class Googlephotos(AndroidUiAutoBenchmark):
 
         for entry in self.device.listdir(self.device.working_directory):
             match = regex.search(entry)
-            if entry.endswith(".log"):
+            if entry.endswith(".log") or entry.endswith(".json"):
                 self.device.pull_file(os.path.join(self.device.working_directory, entry),
                                       context.output_directory)
                 self.device.delete_file(os.path.join(self.device.working_directory, entry))
@@ -26,6 +26,7 @@ import com.android.uiautomator.core.UiScrollable;
 
 import com.arm.wlauto.uiauto.UxPerfUiAutomation;
 
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
@@ -46,21 +47,94 @@ public class UiAutomation extends UxPerfUiAutomation {
 
         pauseForSplashScreen();
         setScreenOrientation(ScreenOrientation.NATURAL);
-        confirmAccess();
-        dismissWelcomeView();
-        closePromotionPopUp();
-        selectWorkingGallery();
-        gesturesTest();
-        editPhotoColorTest();
-        cropPhotoTest();
-        rotatePhotoTest();
+
+        StepSession session = new StepSession(parameters);
+        session.add(new Step("confirm_access", true) {
+            public void run() throws Exception {
+                confirmAccess();
+            }
+        });
+        session.add(new Step("welcome_view") {
+            public void run() throws Exception {
+                // A restored app state has already been through the welcome
+                // views; otherwise snapshot the state once they are done
+                UiSelector gallery = new UiSelector().resourceId("com.google.android.apps.photos:id/recycler_view");
+                if (!verifyAppState(gallery, viewTimeout)) {
+                    dismissWelcomeView();
+                    captureAppState();
+                }
+            }
+        });
+        session.add(new Step("promotion_popup", true) {
+            public void run() throws Exception {
+                closePromotionPopUp();
+            }
+        });
+        session.add(new Step("working_gallery", true) {
+            public void run() throws Exception {
+                selectWorkingGallery();
+            }
+        });
+        session.add(new GalleryStep("gestures") {
+            public void run() throws Exception {
+                gesturesTest();
+            }
+        });
+        session.add(new GalleryStep("edit_photo") {
+            public void run() throws Exception {
+                editPhotoColorTest();
+            }
+        });
+        session.add(new GalleryStep("crop_photo") {
+            public void run() throws Exception {
+                cropPhotoTest();
+            }
+        });
+        session.add(new GalleryStep("rotate_photo") {
+            public void run() throws Exception {
+                rotatePhotoTest();
+            }
+        });
+
+        // Keep the results of the steps that did complete if one fails
+        try {
+            session.run();
+        } finally {
+            writeResultsToFile(timingResults, parameters.getString("output_file"));
+        }
         unsetScreenOrientation();
+    }
+
+    // The photo tests all start from the wa-working gallery and, if they
+    // fail part way through an edit, leave the editor with changes to discard
+    private abstract class GalleryStep extends Step {
+        GalleryStep(String name) {
+            super(name);
+        }
+
+        public boolean precondition() throws Exception {
+            return new UiObject(new UiSelector().resourceId("com.google.android.apps.photos:id/recycler_view"))
+                        .exists();
+        }
 
-        writeResultsToFile(timingResults, parameters.getString("output_file"));
+        public void recover() throws Exception {
+            UiObject discard = new UiObject(new UiSelector().textMatches("(?i)discard")
+                                                            .className("android.widget.Button"));
+            if (discard.exists()) {
+                discard.click();
+            }
+        }
     }
 
-    public void pauseForSplashScreen() {
-        sleep(5); // Pause while splash screen loads
+    public void pauseForSplashScreen() throws Exception {
+        // When measuring the launch the app is relaunched and only left
+        // once it has stopped drawing, so no fixed pause is needed
+        LaunchResult launch = measureLaunch(parameters, "app");
+        if (launch != null) {
+            timingResults.put("launch_" + launch.launchType.name().toLowerCase(), launch.result());
+        } else {
+            sleep(5); // Pause while splash screen loads
+        }
     }
 
     public void dismissWelcomeView() throws Exception {
@@ -86,13 +160,13 @@ public class UiAutomation extends UxPerfUiAutomation {
         useWithoutAccount.clickAndWaitForNewWindow();
 
         // Dismiss welcome views promoting app features
-        sleep(1);
+        waitForQuiescence(TimeUnit.SECONDS.toMillis(1));
         uiDeviceSwipeLeft(10);
-        sleep(1);
+        waitForQuiescence(TimeUnit.SECONDS.toMillis(1));
         uiDeviceSwipeLeft(10);
-        sleep(1);
+        waitForQuiescence(TimeUnit.SECONDS.toMillis(1));
         uiDeviceSwipeLeft(10);
-        sleep(1);
+        waitForQuiescence(TimeUnit.SECONDS.toMillis(1));
 
         UiObject nextButton =
             new UiObject(new UiSelector().resourceId("com.google.android.apps.photos:id/next_button")
@@ -116,45 +190,49 @@ public class UiAutomation extends UxPerfUiAutomation {
         testParams.put("pinch_in", new GestureTestParams(GestureType.PINCH, PinchType.IN, 100, 50));
         testParams.put("swipe_right", new GestureTestParams(GestureType.UIDEVICE_SWIPE, Direction.RIGHT, 10));
 
-        Iterator<Entry<String, GestureTestParams>> it = testParams.entrySet().iterator();
-
         // Select first photograph
         selectPhoto(1);
 
-        while (it.hasNext()) {
-            Map.Entry<String, GestureTestParams> pair = it.next();
-            GestureType type = pair.getValue().gestureType;
-            Direction dir = pair.getValue().gestureDirection;
-            PinchType pinch = pair.getValue().pinchType;
-            int steps = pair.getValue().steps;
-            int percent = pair.getValue().percent;
-
-            UiObject view = new UiObject(new UiSelector().enabled(true));
+        if (parameters.getString("sustained_duration_secs") != null) {
+            // Loop the whole gesture set until the device has heated up
+            final Map<String, GestureTestParams> gestures = testParams;
+            runSustained(testTag, parameters, new Step(testTag) {
+                public void run() throws Exception {
+                    for (GestureTestParams params : gestures.values()) {
+                        performGesture(getPhotoView(), params);
+                    }
+                }
+            });
+        } else {
+            for (Map.Entry<String, GestureTestParams> pair : testParams.entrySet()) {
+                UiObject view = getPhotoView();
 
-            if (!view.waitForExists(viewTimeout)) {
-                throw new UiObjectNotFoundException("Could not find \"photo view\".");
-            }
+                String runName = String.format(testTag + "_" + pair.getKey());
+                SurfaceLogger logger = new SurfaceLogger(runName, parameters);
+                logger.start();
 
-            String runName = String.format(testTag + "_" + pair.getKey());
-            SurfaceLogger logger = new SurfaceLogger(runName, parameters);
-            logger.start();
+                performGesture(view, pair.getValue());
 
-            switch (type) {
-                case UIDEVICE_SWIPE:
-                    uiDeviceSwipe(dir, steps);
-                    break;
-                case UIOBJECT_SWIPE:
-                    uiObjectSwipe(view, dir, steps);
-                    break;
-                case PINCH:
-                    uiObjectVertPinch(view, pinch, steps, percent);
-                    break;
-                default:
-                    break;
+                logger.stop();
+                timingResults.put(runName, logger.result());
             }
+        }
 
-            logger.stop();
-            timingResults.put(runName, logger.result());
+        if (parameters.getString("sweep_steps") != null) {
+            // Every point starts from the first photo, unzoomed
+            runGestureSweep(testTag, parameters, getPhotoView(), new Step("reset_photo") {
+                public void run() throws Exception {
+                    getUiDevice().pressBack();
+                    waitForQuiescence(TimeUnit.SECONDS.toMillis(1));
+                    selectPhoto(1);
+                }
+            });
+        }
+
+        if (parameters.getString("rotation_repetitions") != null) {
+            RotationResult rotation =
+                runRotationBenchmark(Integer.parseInt(parameters.getString("rotation_repetitions")));
+            rotation.writeResults(new File(parameters.getString("output_dir"), testTag + "_rotation.log"));
         }
 
         UiObject navigateUpButton =
@@ -162,6 +240,15 @@ public class UiAutomation extends UxPerfUiAutomation {
         navigateUpButton.click();
     }
 
+    private UiObject getPhotoView() throws Exception {
+        UiObject view = new UiObject(new UiSelector().enabled(true));
+
+        if (!view.waitForExists(viewTimeout)) {
+            throw new UiObjectNotFoundException("Could not find \"photo view\".");
+        }
+        return view;
+    }
+
     public enum Position { LEFT, RIGHT, CENTRE };
 
     private class SeekBarTestParams {
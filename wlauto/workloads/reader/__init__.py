@@ -66,6 +66,12 @@ class Reader(AndroidUiAutoBenchmark):
                   test run.  The output is piped to log files which are then
                   pulled from the phone.
                   """),
+        Parameter('tti_enabled', kind=bool, default=False,
+                  description="""
+                  If ``True``, after opening the document the workload repeatedly
+                  nudges the page until the app responds, and reports the time
+                  from opening to that point as ``openfile_interactive``.
+                  """),
         Parameter('email', kind=str, default="email@gmail.com",
                   description="""
                   Email account used to register with Adobe online services.
@@ -89,6 +95,13 @@ class Reader(AndroidUiAutoBenchmark):
                   The second test string to use for the word search test.
                   Note: Accepts single words only.
                   """),
+        Parameter('intent_navigation', kind=bool, default=False,
+                  description="""
+                  If ``True``, the document is reopened for the search test with
+                  a view intent rather than through the file list. The
+                  ``openfile_*`` results then come from the first opening, for
+                  the gestures test, only.
+                  """),
     ]
 
     instrumentation_log = ''.join([name, '_instrumentation.log'])
@@ -102,9 +115,13 @@ class Reader(AndroidUiAutoBenchmark):
         self.uiauto_params['email'] = self.email
         self.uiauto_params['password'] = self.password
         self.uiauto_params['dumpsys_enabled'] = self.dumpsys_enabled
+        self.uiauto_params['tti_enabled'] = self.tti_enabled
         self.uiauto_params['filename'] = self.document_name
         self.uiauto_params['first_search_word'] = self.first_search_word
         self.uiauto_params['second_search_word'] = self.second_search_word
+        self.uiauto_params['intent_navigation'] = self.intent_navigation
+        self.uiauto_params['document_dir'] = self.device.path.join(self.device.external_storage_directory,
+                                                                   'Android/data/com.adobe.reader/files/')
 
     def initialize(self, context):
         super(Reader, self).initialize(context)
@@ -16,6 +16,7 @@
 package com.arm.wlauto.uiauto.reader;
 
 import android.graphics.Rect;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.SystemClock;
 
@@ -26,6 +27,7 @@ import com.android.uiautomator.core.UiSelector;
 
 import com.arm.wlauto.uiauto.UxPerfUiAutomation;
 
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -163,6 +165,18 @@ public class UiAutomation extends UxPerfUiAutomation {
         if (!viewPager.waitForExists(uiAutoTimeout)) {
             throw new UiObjectNotFoundException("Could not find \"viewPager\".");
         };
+
+        // Opening is only complete once the document responds to scrolling
+        if (Boolean.parseBoolean(parameters.getString("tti_enabled"))) {
+            long interactive = waitForInteractive(parameters.getString("package"), viewPager,
+                                                  TTI_RESPONSE_DEADLINE_MILLIS, TTI_TIMEOUT_MILLIS);
+            if (interactive > 0) {
+                Timer interactiveResult = new Timer();
+                interactiveResult.start(result.getStart());
+                interactiveResult.end(interactive);
+                timingResults.put("openfile_interactive", interactiveResult);
+            }
+        }
         return result;
     }
 
@@ -230,7 +244,12 @@ public class UiAutomation extends UxPerfUiAutomation {
 
         String testTag = "search";
 
-        openFile(filename);
+        // The document was already opened through the UI, and measured, by
+        // the gestures test, so it may be opened directly this time
+        boolean openedWithIntent = openFileWithIntent(filename);
+        if (!openedWithIntent) {
+            openFile(filename);
+        }
 
         // Get the page view for the opened document which we can use for pinch actions
         UiObject pageView = getUiObjectByResourceId("com.adobe.reader:id/pageView",
@@ -240,7 +259,21 @@ public class UiAutomation extends UxPerfUiAutomation {
             timingResults.put(String.format(testTag + "_" + runName), searchTest(searchStrings[i]));
         }
 
-        exitDocument();
+        if (openedWithIntent) {
+            pressBack();
+        } else {
+            exitDocument();
+        }
+    }
+
+    private boolean openFileWithIntent(final String filename) throws Exception {
+        if (!Boolean.parseBoolean(parameters.getString("intent_navigation"))) {
+            return false;
+        }
+        File document = new File(parameters.getString("document_dir"), filename);
+        UiSelector viewPager = new UiSelector().resourceId("com.adobe.reader:id/viewPager");
+        return viewWithIntent(parameters.getString("package"), Uri.fromFile(document).toString(),
+                              "application/pdf", viewPager, uiAutoTimeout);
     }
 
     private Timer searchTest(final String searchText) throws Exception {
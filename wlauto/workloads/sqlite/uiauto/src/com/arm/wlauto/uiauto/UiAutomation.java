@@ -21,6 +21,8 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import java.util.concurrent.TimeUnit;
+
 // Import the uiautomator libraries
 import com.android.uiautomator.core.UiObject;
 import com.android.uiautomator.core.UiObjectNotFoundException;
@@ -48,7 +50,7 @@ public class UiAutomation extends BaseUiAutomation {
                                                       .className("android.widget.Button"));
             waitUntilNoObject(stop_text, 600);
 
-            sleep(2);
+            waitForQuiescence(TimeUnit.SECONDS.toMillis(2));
             this.extractResults();
         } finally {
         }
@@ -94,7 +96,7 @@ public class UiAutomation extends BaseUiAutomation {
             if (!label.exists()){
                 resultList.scrollForward();
                 index--;
-                sleep(1);
+                waitForQuiescence(TimeUnit.SECONDS.toMillis(1));
                 continue;
             }
             Log.v("sqlite", label.getText() + " = " + value.getText().replace("\n", " "));
@@ -60,6 +60,13 @@ class Youtube(AndroidUiAutoBenchmark):
                   test run.  The output is piped to log files which are then
                   pulled from the phone.
                   '''),
+        Parameter('multi_layer_enabled', kind=bool, default=False,
+                  description='''
+                  If ``True``, frames are also captured from every SurfaceFlinger
+                  layer owned by the app (including the video surface) and per-layer
+                  and combined frame statistics are written for each measured
+                  action.
+                  '''),
         Parameter('video_source', kind=str, default='home',
                   allowed_values=['home', 'my_videos', 'search', 'trending'],
                   description='''
@@ -71,6 +78,32 @@ class Youtube(AndroidUiAutoBenchmark):
                   The search term to use when ``video_source`` is set to ``search``.
                   Not applicable otherwise.
                   '''),
+        Parameter('scroll_repetitions', kind=int, default=None,
+                  description='''
+                  If set, the related videos list is also scrolled down and back up
+                  this many times with a fixed injection profile, and the FPS,
+                  janky frame percentage and worst frame of each direction are
+                  written to ``youtube_watch_list_scroll_down.log`` and
+                  ``youtube_watch_list_scroll_up.log``.
+                  '''),
+        Parameter('scroll_distance', kind=int, default=2000,
+                  description='''
+                  Distance in pixels of each scroll when ``scroll_repetitions`` is
+                  set.
+                  '''),
+        Parameter('scroll_velocity', kind=int, default=3000, constraint=lambda x: x > 0,
+                  description='''
+                  Finger velocity in pixels per second of each scroll when
+                  ``scroll_repetitions`` is set.
+                  '''),
+        Parameter('keyboard_probe_enabled', kind=bool, default=False,
+                  description='''
+                  If ``True`` (and ``video_source`` is ``search``), the time taken
+                  for the soft keyboard to be shown on tapping the search box and
+                  hidden again on pressing back is measured, along with frame
+                  statistics for both animations, and written to
+                  ``youtube_keyboard.log``.
+                  '''),
     ]
 
     view = package + '/com.google.android.apps.youtube.app.WatchWhileActivity'
@@ -88,7 +121,13 @@ class Youtube(AndroidUiAutoBenchmark):
         self.uiauto_params['output_dir'] = self.device.working_directory
         self.uiauto_params['output_file'] = self.output_file
         self.uiauto_params['dumpsys_enabled'] = self.dumpsys_enabled
+        self.uiauto_params['multi_layer_enabled'] = self.multi_layer_enabled
         self.uiauto_params['video_source'] = self.video_source
+        if self.scroll_repetitions:
+            self.uiauto_params['scroll_repetitions'] = self.scroll_repetitions
+            self.uiauto_params['scroll_distance'] = self.scroll_distance
+            self.uiauto_params['scroll_velocity'] = self.scroll_velocity
+        self.uiauto_params['keyboard_probe_enabled'] = self.keyboard_probe_enabled
         if self.video_source == 'search':
             if self.search_term:
                 self.uiauto_params['search_term'] = self.search_term.replace(' ', '_')
@@ -60,6 +60,8 @@ public class UiAutomation extends UxPerfUiAutomation {
     protected Timer timer = new Timer();
     protected Bundle parameters;
     protected boolean dumpsysEnabled;
+    protected boolean multiLayerEnabled;
+    protected MultiLayerCapture multiLayerCapture;
     protected String outputDir;
     protected String packageName;
     protected String packageID;
@@ -68,6 +70,7 @@ public class UiAutomation extends UxPerfUiAutomation {
     public void runUiAutomation() throws Exception {
         parameters = getParams();
         dumpsysEnabled = Boolean.parseBoolean(parameters.getString("dumpsys_enabled"));
+        multiLayerEnabled = Boolean.parseBoolean(parameters.getString("multi_layer_enabled"));
         packageName = parameters.getString("package");
         outputDir = parameters.getString("output_dir");
         packageID = packageName + ":id/";
@@ -107,10 +110,10 @@ public class UiAutomation extends UxPerfUiAutomation {
 
     public void disableAutoplay() throws Exception {
         clickUiObject(BY_DESC, "More options");
-        startMeasurements();
+        startMeasurements("goto_settings");
         clickUiObject(BY_TEXT, "Settings", true);
         endMeasurements("goto_settings");
-        startMeasurements();
+        startMeasurements("goto_settings_general");
         clickUiObject(BY_TEXT, "General", true);
         endMeasurements("goto_settings_general");
         clickUiObject(BY_TEXT, "Autoplay");
@@ -125,32 +128,36 @@ public class UiAutomation extends UxPerfUiAutomation {
 
     public void testPlayVideo(String source, String searchTerm) throws Exception {
         if (SOURCE_MY_VIDEOS.equalsIgnoreCase(source)) {
-            startMeasurements();
+            startMeasurements("goto_account");
             clickUiObject(BY_DESC, "Account");
             endMeasurements("goto_account");
-            startMeasurements();
+            startMeasurements("goto_my_videos");
             clickUiObject(BY_TEXT, "My Videos", true);
             endMeasurements("goto_my_videos");
-            startMeasurements();
+            startMeasurements("play_from_my_videos");
             clickUiObject(BY_ID, packageID + "thumbnail", true);
             endMeasurements("play_from_my_videos");
         } else if (SOURCE_SEARCH.equalsIgnoreCase(source)) {
-            startMeasurements();
+            startMeasurements("goto_search");
             clickUiObject(BY_DESC, "Search");
             endMeasurements("goto_search");
-            startTimer();
             UiObject textField = getUiObjectByResourceId(packageID + "search_edit_text");
+            if (Boolean.parseBoolean(parameters.getString("keyboard_probe_enabled"))) {
+                measureKeyboard("search", textField);
+                writeKeyboardResults(new File(outputDir, "youtube_keyboard.log"));
+            }
+            startTimer();
             textField.setText(searchTerm);
             endTimer("search_video");
             getUiDevice().pressEnter();
-            startMeasurements();
+            startMeasurements("play_from_search");
             clickUiObject(BY_ID, packageID + "thumbnail", true);
             endMeasurements("play_from_search");
         } else if (SOURCE_TRENDING.equalsIgnoreCase(source)) {
-            startMeasurements();
+            startMeasurements("goto_trending");
             clickUiObject(BY_DESC, "Trending");
             endMeasurements("goto_trending");
-            startMeasurements();
+            startMeasurements("play_from_trending");
             clickUiObject(BY_ID, packageID + "thumbnail", true);
             endMeasurements("play_from_trending");
         } else { // homepage videos
@@ -158,7 +165,7 @@ public class UiAutomation extends UxPerfUiAutomation {
             if (list.exists()) {
                 list.scrollForward();
             }
-            startMeasurements();
+            startMeasurements("play_from_home");
             clickUiObject(BY_ID, packageID + "thumbnail", true);
             endMeasurements("play_from_home");
         }
@@ -182,7 +189,7 @@ public class UiAutomation extends UxPerfUiAutomation {
     public void seekForward() throws Exception {
         UiObject player = getUiObjectByResourceId(packageID + "player_fragment_container", CLASS_FRAME_LAYOUT);
         repeatClickUiObject(player, 2, 100);
-        startMeasurements();
+        startMeasurements("player_seekbar_touch");
         UiObject timebar = clickUiObject(BY_ID, packageID + "time_bar");
         endMeasurements("player_seekbar_touch");
         player.click();
@@ -206,22 +213,39 @@ public class UiAutomation extends UxPerfUiAutomation {
         // ListView of related videos and (maybe) comments
         UiScrollable list = new UiScrollable(new UiSelector().resourceId(packageID + "watch_list"));
         if (list.isScrollable()) {
-            startMeasurements();
+            startMeasurements("watch_list_fling_down");
             list.flingToEnd(LIST_SWIPE_COUNT);
             endMeasurements("watch_list_fling_down");
-            startMeasurements();
+            startMeasurements("watch_list_fling_up");
             list.flingToBeginning(LIST_SWIPE_COUNT);
             endMeasurements("watch_list_fling_up");
+
+            String repetitions = parameters.getString("scroll_repetitions");
+            if (repetitions != null) {
+                int distance = Integer.parseInt(parameters.getString("scroll_distance"));
+                int velocity = Integer.parseInt(parameters.getString("scroll_velocity"));
+                scrollBenchmark("watch_list_scroll_down", list, distance, velocity,
+                                Integer.parseInt(repetitions))
+                    .writeResults(new File(outputDir, "youtube_watch_list_scroll_down.log"));
+                scrollBenchmark("watch_list_scroll_up", list, -distance, velocity,
+                                Integer.parseInt(repetitions))
+                    .writeResults(new File(outputDir, "youtube_watch_list_scroll_up.log"));
+            }
         }
-        // After flinging, give the window enough time to settle down before
-        // the next step, or else UiAutomator fails to find views in time
-        sleep(VIDEO_SLEEP_SECONDS);
+        // After flinging, wait for the window to settle down before the
+        // next step, or else UiAutomator fails to find views in time
+        waitForQuiescence(TimeUnit.SECONDS.toMillis(VIDEO_SLEEP_SECONDS));
     }
 
     protected void startDumpsys() throws Exception {
         if (dumpsysEnabled) {
             initDumpsysSurfaceFlinger(packageName);
             initDumpsysGfxInfo(packageName);
+            if (multiLayerEnabled) {
+                // Video is rendered to its own SurfaceView layer
+                multiLayerCapture = new MultiLayerCapture(packageName, new File(outputDir));
+                multiLayerCapture.start();
+            }
         }
     }
 
@@ -229,6 +253,10 @@ public class UiAutomation extends UxPerfUiAutomation {
         if (dumpsysEnabled) {
             exitDumpsysSurfaceFlinger(packageName, new File(outputDir, testTag + "_surfFlinger.log"));
             exitDumpsysGfxInfo(packageName, new File(outputDir, testTag + "_gfxInfo.log"));
+            if (multiLayerCapture != null) {
+                multiLayerCapture.stop(testTag);
+                multiLayerCapture = null;
+            }
         }
     }
 
@@ -242,13 +270,15 @@ public class UiAutomation extends UxPerfUiAutomation {
         results.put(testTag, timer);
     }
 
-    protected void startMeasurements() throws Exception {
+    protected void startMeasurements(String testTag) throws Exception {
+        beginMeasuredSpan(testTag);
         startDumpsys();
         startTimer();
     }
 
     protected void endMeasurements(String testTag) throws Exception {
         endTimer(testTag);
+        endMeasuredSpan();
         endDumpsys(testTag);
     }
 }